@@ -0,0 +1,90 @@
+package com.seewo.psd.bootx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold class loading: every iteration gets a new loader and loads all classes of the fat
+ * jar once, as an application does at startup. Contended variants split the classes over
+ * the benchmark threads, run with {@code -t} to change their number.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class ClassLoadingBenchmark {
+
+    /**
+     * A fresh loader per iteration, classes stay defined in a loader once loaded.
+     */
+    @State(Scope.Benchmark)
+    public static class LoaderState {
+
+        LoaderType.LoaderHandle handle;
+
+        @Setup(Level.Iteration)
+        public void open(FatJarState fatJar) throws IOException {
+            handle = fatJar.loader.open(fatJar.file);
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws IOException {
+            handle.close();
+        }
+    }
+
+    @Benchmark
+    public void loadClass(FatJarState fatJar, LoaderState loader, Blackhole blackhole) throws ClassNotFoundException {
+        load(fatJar.fatJar.getClassNames(), loader.handle.getClassLoader(), 0, 1, blackhole);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void loadClassContended(FatJarState fatJar, LoaderState loader, ThreadParams thread, Blackhole blackhole)
+            throws ClassNotFoundException {
+        load(fatJar.fatJar.getClassNames(), loader.handle.getClassLoader(), thread.getThreadIndex(),
+                thread.getThreadCount(), blackhole);
+    }
+
+    /**
+     * Loads the first class of every package, so the time is dominated by reading the
+     * manifest and defining the package.
+     */
+    @Benchmark
+    public void definePackage(FatJarState fatJar, LoaderState loader, Blackhole blackhole) throws ClassNotFoundException {
+        load(fatJar.fatJar.getPackageFirstClassNames(), loader.handle.getClassLoader(), 0, 1, blackhole);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void definePackageContended(FatJarState fatJar, LoaderState loader, ThreadParams thread, Blackhole blackhole)
+            throws ClassNotFoundException {
+        load(fatJar.fatJar.getPackageFirstClassNames(), loader.handle.getClassLoader(), thread.getThreadIndex(),
+                thread.getThreadCount(), blackhole);
+    }
+
+    private static void load(List<String> classNames, ClassLoader classLoader, int thread, int threads,
+            Blackhole blackhole) throws ClassNotFoundException {
+        for (int i = thread; i < classNames.size(); i += threads) {
+            blackhole.consume(Class.forName(classNames.get(i), false, classLoader));
+        }
+    }
+}
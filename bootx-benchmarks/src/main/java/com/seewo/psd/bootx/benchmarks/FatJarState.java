@@ -0,0 +1,50 @@
+package com.seewo.psd.bootx.benchmarks;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A generated fat jar shared by all threads of a trial, see {@link SyntheticFatJar}.
+ */
+@State(Scope.Benchmark)
+public class FatJarState {
+
+    @Param({"SPRING", "INDEX", "CACHED"})
+    public LoaderType loader;
+
+    @Param({"20", "100"})
+    public int jarCount;
+
+    @Param({"200"})
+    public int classesPerJar;
+
+    @Param({"false", "true"})
+    public boolean splitPackages;
+
+    @Param({"true"})
+    public boolean compressed;
+
+    public SyntheticFatJar fatJar;
+
+    public File file;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        file = File.createTempFile("bootx-bench", ".jar");
+        fatJar = new SyntheticFatJar().jarCount(jarCount).classesPerJar(classesPerJar).splitPackages(splitPackages)
+                .compressed(compressed);
+        fatJar.writeTo(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        file.delete();
+    }
+}
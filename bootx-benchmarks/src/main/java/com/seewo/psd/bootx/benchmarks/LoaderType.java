@@ -0,0 +1,94 @@
+package com.seewo.psd.bootx.benchmarks;
+
+import com.seewo.psd.bootx.loader.CachedLaunchedURLClassLoader;
+import com.seewo.psd.bootx.loader.JarIndexLaunchedURLClassLoader;
+import org.springframework.boot.loader.LaunchedURLClassLoader;
+import org.springframework.boot.loader.archive.Archive;
+import org.springframework.boot.loader.archive.JarFileArchive;
+import org.springframework.boot.loader.jar.JarFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The loaders under comparison, created the way their launchers create them.
+ */
+public enum LoaderType {
+
+    SPRING {
+        @Override
+        LoaderHandle create(Archive archive, URL[] urls) {
+            return new LoaderHandle(new LaunchedURLClassLoader(false, archive, urls, PARENT));
+        }
+    },
+
+    INDEX {
+        @Override
+        LoaderHandle create(Archive archive, URL[] urls) {
+            return new LoaderHandle(new JarIndexLaunchedURLClassLoader(false, archive, urls, PARENT));
+        }
+    },
+
+    CACHED {
+        @Override
+        LoaderHandle create(Archive archive, URL[] urls) {
+            return new LoaderHandle(new CachedLaunchedURLClassLoader(false, archive, urls, PARENT));
+        }
+    };
+
+    private static final ClassLoader PARENT = LoaderType.class.getClassLoader();
+
+    static {
+        JarFile.registerUrlProtocolHandler();
+    }
+
+    abstract LoaderHandle create(Archive archive, URL[] urls);
+
+    /**
+     * Open a fat jar and create a loader for it.
+     *
+     * @param file the fat jar
+     * @return the loader, closing it closes the archive too
+     * @throws IOException if the jar cannot be opened
+     */
+    public LoaderHandle open(File file) throws IOException {
+        JarFileArchive archive = new JarFileArchive(file);
+        List<URL> urls = new ArrayList<>();
+        Iterator<Archive> nested = archive.getNestedArchives((entry) -> entry.isDirectory()
+                ? entry.getName().equals("BOOT-INF/classes/") : entry.getName().startsWith("BOOT-INF/lib/"), null);
+        while (nested.hasNext()) {
+            urls.add(nested.next().getUrl());
+        }
+        LoaderHandle handle = create(archive, urls.toArray(new URL[0]));
+        handle.archive = archive;
+        return handle;
+    }
+
+    /**
+     * A loader together with the archive it was created for.
+     */
+    public static final class LoaderHandle implements AutoCloseable {
+
+        private final ClassLoader classLoader;
+
+        private JarFileArchive archive;
+
+        LoaderHandle(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+
+        public ClassLoader getClassLoader() {
+            return classLoader;
+        }
+
+        @Override
+        public void close() throws IOException {
+            ((java.net.URLClassLoader) classLoader).close();
+            archive.close();
+        }
+    }
+}
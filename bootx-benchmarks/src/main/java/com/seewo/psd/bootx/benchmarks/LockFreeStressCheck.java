@@ -0,0 +1,152 @@
+package com.seewo.psd.bootx.benchmarks;
+
+import com.seewo.psd.bootx.loader.JarIndexLaunchedURLClassLoader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that {@link JarIndexLaunchedURLClassLoader#LOCK_FREE_PROPERTY lock-free} loading
+ * defines every class exactly once. For each loader type, with and without an index,
+ * {@code --threads} threads load all classes of a generated fat jar through one fresh
+ * loader, each in its own shuffled order, starting together. Every thread must get the
+ * same {@link Class} for a name, defined by that loader, and no thread may see a
+ * {@link LinkageError}. Exits with status 1 on any violation:
+ * <pre>
+ * java -cp target/benchmarks.jar com.seewo.psd.bootx.benchmarks.LockFreeStressCheck \
+ *     --threads=8 --rounds=5 --jars=20 --classes=200
+ * </pre>
+ */
+public class LockFreeStressCheck {
+
+    private int threads = 8;
+
+    private int rounds = 5;
+
+    private int jarCount = 20;
+
+    private int classesPerJar = 200;
+
+    public static void main(String[] args) throws Exception {
+        LockFreeStressCheck check = new LockFreeStressCheck();
+        check.parse(args);
+        System.setProperty(JarIndexLaunchedURLClassLoader.LOCK_FREE_PROPERTY, "true");
+        int failures = check.run();
+        System.out.println((failures == 0) ? "PASSED" : "FAILED with " + failures + " violations");
+        System.exit((failures == 0) ? 0 : 1);
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(value);
+            } else if (arg.startsWith("--jars=")) {
+                jarCount = Integer.parseInt(value);
+            } else if (arg.startsWith("--classes=")) {
+                classesPerJar = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException(
+                        "Usage: LockFreeStressCheck [--threads=n] [--rounds=n] [--jars=n] [--classes=n]");
+            }
+        }
+    }
+
+    private int run() throws Exception {
+        int failures = 0;
+        for (boolean index : new boolean[] { true, false }) {
+            File file = File.createTempFile("bootx-stress", ".jar");
+            try {
+                // split packages and deflated entries take the most paths through the loader
+                SyntheticFatJar fatJar = new SyntheticFatJar().jarCount(jarCount).classesPerJar(classesPerJar)
+                        .splitPackages(true).index(index);
+                fatJar.writeTo(file);
+                for (LoaderType loaderType : new LoaderType[] { LoaderType.INDEX, LoaderType.CACHED }) {
+                    for (int round = 0; round < rounds; round++) {
+                        int roundFailures = runRound(loaderType, file, fatJar.getClassNames(), round);
+                        System.out.println(loaderType + " index=" + index + " round=" + round + " classes="
+                                + fatJar.getClassNames().size() + " violations=" + roundFailures);
+                        failures += roundFailures;
+                    }
+                }
+            } finally {
+                file.delete();
+            }
+        }
+        return failures;
+    }
+
+    private int runRound(LoaderType loaderType, File file, List<String> classNames, int round) throws Exception {
+        try (LoaderType.LoaderHandle handle = loaderType.open(file)) {
+            ClassLoader classLoader = handle.getClassLoader();
+            CyclicBarrier start = new CyclicBarrier(threads);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Map<String, Object>> results = new ArrayList<>();
+            try {
+                List<Future<Map<String, Object>>> futures = new ArrayList<>();
+                for (int thread = 0; thread < threads; thread++) {
+                    long seed = (long) round * threads + thread;
+                    futures.add(executor.submit(() -> load(classLoader, classNames, new Random(seed), start)));
+                }
+                for (Future<Map<String, Object>> future : futures) {
+                    results.add(future.get());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            return verify(classLoader, classNames, results);
+        }
+    }
+
+    private static Map<String, Object> load(ClassLoader classLoader, List<String> classNames, Random random,
+            CyclicBarrier start) throws Exception {
+        List<String> order = new ArrayList<>(classNames);
+        Collections.shuffle(order, random);
+        Map<String, Object> loaded = new HashMap<>();
+        start.await();
+        for (String className : order) {
+            try {
+                loaded.put(className, Class.forName(className, false, classLoader));
+            } catch (Throwable ex) {
+                loaded.put(className, ex);
+            }
+        }
+        return loaded;
+    }
+
+    private static int verify(ClassLoader classLoader, List<String> classNames, List<Map<String, Object>> results) {
+        int failures = 0;
+        for (String className : classNames) {
+            Object first = results.get(0).get(className);
+            for (Map<String, Object> result : results) {
+                Object loaded = result.get(className);
+                String violation = null;
+                if (!(loaded instanceof Class)) {
+                    violation = "failed to load: " + loaded;
+                } else if (loaded != first) {
+                    violation = "defined more than once";
+                } else if (((Class<?>) loaded).getClassLoader() != classLoader) {
+                    violation = "defined by " + ((Class<?>) loaded).getClassLoader();
+                }
+                if (violation != null) {
+                    if (failures < 10) {
+                        System.out.println(className + " " + violation);
+                    }
+                    failures++;
+                }
+            }
+        }
+        return failures;
+    }
+}
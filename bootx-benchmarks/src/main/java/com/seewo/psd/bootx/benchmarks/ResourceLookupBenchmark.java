@@ -0,0 +1,98 @@
+package com.seewo.psd.bootx.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resource lookups against one loader per trial: a resource found in a single jar, one
+ * every jar has and one no jar has, as {@code @ConditionalOnResource} style probes ask for.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceLookupBenchmark {
+
+    private static final String MISSING_RESOURCE = "bench/missing/resource.txt";
+
+    @State(Scope.Benchmark)
+    public static class LoaderState {
+
+        LoaderType.LoaderHandle handle;
+
+        @Setup(Level.Trial)
+        public void open(FatJarState fatJar) throws IOException {
+            handle = fatJar.loader.open(fatJar.file);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            handle.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+
+        String nextResource(List<String> resourceNames) {
+            next = (next + 1) % resourceNames.size();
+            return resourceNames.get(next);
+        }
+    }
+
+    @Benchmark
+    public URL findResource(FatJarState fatJar, LoaderState loader, Cursor cursor) {
+        return loader.handle.getClassLoader().getResource(cursor.nextResource(fatJar.fatJar.getResourceNames()));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public URL findResourceContended(FatJarState fatJar, LoaderState loader, Cursor cursor) {
+        return loader.handle.getClassLoader().getResource(cursor.nextResource(fatJar.fatJar.getResourceNames()));
+    }
+
+    @Benchmark
+    public URL findMissingResource(LoaderState loader) {
+        return loader.handle.getClassLoader().getResource(MISSING_RESOURCE);
+    }
+
+    @Benchmark
+    public int findResources(LoaderState loader) throws IOException {
+        return count(loader.handle.getClassLoader().getResources(SyntheticFatJar.SHARED_RESOURCE));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int findResourcesContended(LoaderState loader) throws IOException {
+        return count(loader.handle.getClassLoader().getResources(SyntheticFatJar.SHARED_RESOURCE));
+    }
+
+    private static int count(Enumeration<URL> urls) {
+        int count = 0;
+        while (urls.hasMoreElements()) {
+            urls.nextElement();
+            count++;
+        }
+        return count;
+    }
+}
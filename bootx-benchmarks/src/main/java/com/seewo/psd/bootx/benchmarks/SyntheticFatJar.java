@@ -0,0 +1,225 @@
+package com.seewo.psd.bootx.benchmarks;
+
+import com.seewo.psd.bootx.loader.tools.JarIndexGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates a Spring Boot style fat jar of empty classes for benchmarking the loaders.
+ * <p>
+ * Every {@code BOOT-INF/lib} jar holds {@code classesPerJar} classes spread over packages
+ * of {@link #CLASSES_PER_PACKAGE} classes, a resource of its own and a
+ * {@link #SHARED_RESOURCE} that every jar has. With split packages, jars share their
+ * packages with their neighbour, as e.g. {@code javax.annotation} is split in practice.
+ */
+public class SyntheticFatJar {
+
+    public static final String SHARED_RESOURCE = "META-INF/bench.factories";
+
+    static final int CLASSES_PER_PACKAGE = 25;
+
+    private int jarCount = 20;
+
+    private int classesPerJar = 200;
+
+    private boolean splitPackages;
+
+    private boolean compressed = true;
+
+    private boolean index = true;
+
+    private final List<String> classNames = new ArrayList<>();
+
+    private final List<String> packageFirstClassNames = new ArrayList<>();
+
+    private final List<String> resourceNames = new ArrayList<>();
+
+    public SyntheticFatJar jarCount(int jarCount) {
+        this.jarCount = jarCount;
+        return this;
+    }
+
+    public SyntheticFatJar classesPerJar(int classesPerJar) {
+        this.classesPerJar = classesPerJar;
+        return this;
+    }
+
+    public SyntheticFatJar splitPackages(boolean splitPackages) {
+        this.splitPackages = splitPackages;
+        return this;
+    }
+
+    /**
+     * Deflate the class and resource entries of the nested jars. Nested jars themselves are
+     * always stored, as Spring Boot requires.
+     *
+     * @param compressed whether to deflate nested entries
+     * @return this generator
+     */
+    public SyntheticFatJar compressed(boolean compressed) {
+        this.compressed = compressed;
+        return this;
+    }
+
+    /**
+     * Write the bootx index, with class table, into the generated jar.
+     *
+     * @param index whether to index the jar
+     * @return this generator
+     */
+    public SyntheticFatJar index(boolean index) {
+        this.index = index;
+        return this;
+    }
+
+    /**
+     * Write the fat jar.
+     *
+     * @param file the file to write
+     * @return the file
+     * @throws IOException if the jar cannot be written
+     */
+    public File writeTo(File file) throws IOException {
+        classNames.clear();
+        packageFirstClassNames.clear();
+        resourceNames.clear();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Main-Class", "com.seewo.psd.bootx.loader.JarLauncher");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            writeStored(out, "BOOT-INF/", new byte[0]);
+            writeStored(out, "BOOT-INF/classes/", new byte[0]);
+            writeStored(out, "BOOT-INF/lib/", new byte[0]);
+            for (int jar = 0; jar < jarCount; jar++) {
+                writeStored(out, "BOOT-INF/lib/lib" + jar + ".jar", nestedJar(jar));
+            }
+        }
+        if (index) {
+            JarIndexGenerator generator = new JarIndexGenerator(file);
+            generator.setClassIndex(true);
+            generator.generate();
+        }
+        return file;
+    }
+
+    private byte[] nestedJar(int jar) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, "lib" + jar);
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, "1.0");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JarOutputStream out = new JarOutputStream(bytes, manifest)) {
+            out.setMethod(compressed ? ZipEntry.DEFLATED : ZipEntry.STORED);
+            for (int i = 0; i < classesPerJar; i++) {
+                int pkg = i / CLASSES_PER_PACKAGE;
+                // split packages: the second half of a jar's packages continue in the next jar
+                int owner = (splitPackages && pkg % 2 == 1 && jar > 0) ? jar - 1 : jar;
+                String className = "bench.j" + owner + ".p" + pkg + ".C" + jar + "_" + i;
+                if (i % CLASSES_PER_PACKAGE == 0) {
+                    packageFirstClassNames.add(className);
+                }
+                classNames.add(className);
+                write(out, className.replace('.', '/') + ".class", classFile(className.replace('.', '/')));
+            }
+            String resource = "bench/lib" + jar + "/resource.txt";
+            resourceNames.add(resource);
+            write(out, resource, resource.getBytes(StandardCharsets.UTF_8));
+            write(out, SHARED_RESOURCE, ("lib" + jar).getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(ZipOutputStream out, String name, byte[] data) throws IOException {
+        if (compressed) {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(data);
+            out.closeEntry();
+        } else {
+            writeStored(out, name, data);
+        }
+    }
+
+    private static void writeStored(ZipOutputStream out, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+
+    /**
+     * The smallest valid class file: a public class extending {@code Object} with no
+     * members.
+     */
+    public static byte[] classFile(String internalName) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(5);
+        out.writeByte(1);
+        out.writeUTF(internalName);
+        out.writeByte(7);
+        out.writeShort(1);
+        out.writeByte(1);
+        out.writeUTF("java/lang/Object");
+        out.writeByte(7);
+        out.writeShort(3);
+        out.writeShort(0x0021);
+        out.writeShort(2);
+        out.writeShort(4);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Get the names of all generated classes, in jar order.
+     *
+     * @return the class names
+     */
+    public List<String> getClassNames() {
+        return Collections.unmodifiableList(classNames);
+    }
+
+    /**
+     * Get one class of every package a jar holds, loading them defines every package.
+     *
+     * @return the class names
+     */
+    public List<String> getPackageFirstClassNames() {
+        return Collections.unmodifiableList(packageFirstClassNames);
+    }
+
+    /**
+     * Get the resource each jar holds on its own.
+     *
+     * @return the resource names
+     */
+    public List<String> getResourceNames() {
+        return Collections.unmodifiableList(resourceNames);
+    }
+}
@@ -0,0 +1,163 @@
+package com.seewo.psd.bootx.benchmarks.startup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * End-to-end startup comparison of Spring Boot's {@code JarLauncher} and bootx on
+ * generated applications.
+ * <p>
+ * For every application size it generates a {@link SyntheticApp}, then launches it
+ * {@code --runs} times with each launcher, alternating between them, and measures the
+ * wall-clock time from starting the JVM to the application's {@code main} and to the
+ * context being refreshed. Each run is one JSON line on standard out and in
+ * {@code --output}:
+ * <pre>
+ * java -cp target/benchmarks.jar com.seewo.psd.bootx.benchmarks.startup.StartupHarness \
+ *     --apps=50:5000,200:20000,500:50000 --runs=5 --output=startup.jsonl
+ * </pre>
+ * The Spring Boot jars the applications run on are read from {@code --libs}, which
+ * defaults to the {@code startup-app-libs} directory the build copies next to the
+ * benchmarks jar. {@code --jvm-arg} options are passed to every launched JVM.
+ */
+public class StartupHarness {
+
+    private static final String STOCK_LAUNCHER = "org.springframework.boot.loader.JarLauncher";
+
+    private final List<int[]> apps = new ArrayList<>();
+
+    private final List<String> jvmArgs = new ArrayList<>();
+
+    private int runs = 5;
+
+    private File libs;
+
+    private File work;
+
+    private File output;
+
+    public static void main(String[] args) throws Exception {
+        StartupHarness harness = new StartupHarness();
+        harness.parse(args);
+        harness.run();
+    }
+
+    private void parse(String[] args) {
+        String appsOption = "50:5000,200:20000,500:50000";
+        for (String arg : args) {
+            if (arg.startsWith("--apps=")) {
+                appsOption = value(arg);
+            } else if (arg.startsWith("--runs=")) {
+                runs = Integer.parseInt(value(arg));
+            } else if (arg.startsWith("--libs=")) {
+                libs = new File(value(arg));
+            } else if (arg.startsWith("--work=")) {
+                work = new File(value(arg));
+            } else if (arg.startsWith("--output=")) {
+                output = new File(value(arg));
+            } else if (arg.startsWith("--jvm-arg=")) {
+                jvmArgs.add(value(arg));
+            } else {
+                throw new IllegalArgumentException("Usage: StartupHarness [--apps=deps:classes,...] [--runs=n] "
+                        + "[--libs=dir] [--work=dir] [--output=file] [--jvm-arg=arg]...");
+            }
+        }
+        for (String app : appsOption.split(",")) {
+            String[] sizes = app.split(":");
+            apps.add(new int[] { Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]) });
+        }
+    }
+
+    private static String value(String arg) {
+        return arg.substring(arg.indexOf('=') + 1);
+    }
+
+    private void run() throws Exception {
+        if (libs == null) {
+            File benchmarksJar = new File(StartupHarness.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+            libs = new File(benchmarksJar.getParentFile(), "startup-app-libs");
+        }
+        File[] springJars = libs.listFiles((dir, name) -> name.endsWith(".jar"));
+        if (springJars == null || springJars.length == 0) {
+            throw new IllegalStateException("No Spring Boot jars in " + libs + ", build the module or pass --libs");
+        }
+        Arrays.sort(springJars);
+        if (work == null) {
+            work = Files.createTempDirectory("bootx-startup").toFile();
+        }
+        try (PrintWriter out = (output != null) ? new PrintWriter(output, "UTF-8") : null) {
+            for (int[] size : apps) {
+                SyntheticApp app = new SyntheticApp(size[0], size[1], Arrays.asList(springJars));
+                File jar = app.generate(new File(work, app.getName()));
+                for (int run = 0; run < runs; run++) {
+                    for (boolean bootx : new boolean[] { false, true }) {
+                        String result = launch(jar, bootx).toJson(app.getName(), size[0], size[1], bootx, run);
+                        System.out.println(result);
+                        if (out != null) {
+                            out.println(result);
+                            out.flush();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private Timing launch(File jar, boolean bootx) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(jvmArgs);
+        if (bootx) {
+            command.add("-jar");
+            command.add(jar.getPath());
+        } else {
+            command.add("-cp");
+            command.add(jar.getPath());
+            command.add(STOCK_LAUNCHER);
+        }
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        Timing timing = new Timing();
+        StringBuilder log = new StringBuilder();
+        long start = System.currentTimeMillis();
+        Process process = builder.start();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(SyntheticApp.MAIN_MARKER)) {
+                    timing.mainMs = Long.parseLong(line.substring(SyntheticApp.MAIN_MARKER.length())) - start;
+                } else if (line.startsWith(SyntheticApp.REFRESHED_MARKER)) {
+                    timing.refreshedMs = Long.parseLong(line.substring(SyntheticApp.REFRESHED_MARKER.length())) - start;
+                } else {
+                    log.append(line).append('\n');
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || timing.refreshedMs < 0) {
+            throw new IllegalStateException(String.join(" ", command) + " failed with " + exitCode + ":\n" + log);
+        }
+        return timing;
+    }
+
+    private static final class Timing {
+
+        long mainMs = -1;
+
+        long refreshedMs = -1;
+
+        String toJson(String app, int dependencies, int classes, boolean bootx, int run) {
+            return "{\"app\":\"" + app + "\",\"dependencies\":" + dependencies + ",\"classes\":" + classes
+                    + ",\"launcher\":\"" + (bootx ? "bootx" : "stock") + "\",\"run\":" + run
+                    + ",\"timeToMainMs\":" + mainMs + ",\"timeToRefreshedMs\":" + refreshedMs + "}";
+        }
+    }
+}
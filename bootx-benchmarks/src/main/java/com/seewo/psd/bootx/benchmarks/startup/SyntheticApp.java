@@ -0,0 +1,209 @@
+package com.seewo.psd.bootx.benchmarks.startup;
+
+import com.seewo.psd.bootx.benchmarks.SyntheticFatJar;
+import com.seewo.psd.bootx.loader.tools.JarIndexGenerator;
+import com.seewo.psd.bootx.loader.tools.MyLayoutFactory;
+import org.springframework.boot.loader.tools.Libraries;
+import org.springframework.boot.loader.tools.Library;
+import org.springframework.boot.loader.tools.LibraryScope;
+import org.springframework.boot.loader.tools.Repackager;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Collectors;
+
+/**
+ * Generates a Spring Boot application fat jar of a given size, repackaged with
+ * {@link MyLayoutFactory} and indexed like a real build.
+ * <p>
+ * The application is a {@code @SpringBootApplication} on the Spring Boot starter jars,
+ * padded with synthetic dependency jars up to the requested dependency and class counts.
+ * Before starting Spring it loads one in {@link #LOAD_EVERY} of the synthetic classes, as
+ * an application's own code would. It prints {@link #MAIN_MARKER} on entering {@code main}
+ * and {@link #REFRESHED_MARKER} once the context is refreshed, followed by the current time
+ * in milliseconds, and then exits.
+ */
+public class SyntheticApp {
+
+    static final String MAIN_MARKER = "bootx-bench main=";
+
+    static final String REFRESHED_MARKER = "bootx-bench refreshed=";
+
+    static final int LOAD_EVERY = 4;
+
+    private static final String MAIN_CLASS = "bench.app.StartupApp";
+
+    private static final String CLASSES_RESOURCE = "bench-classes.txt";
+
+    private static final int CLASSES_PER_PACKAGE = 25;
+
+    private static final String MAIN_SOURCE = String.join("\n",
+            "package bench.app;",
+            "",
+            "import java.io.BufferedReader;",
+            "import java.io.InputStreamReader;",
+            "import java.nio.charset.StandardCharsets;",
+            "import org.springframework.boot.SpringApplication;",
+            "import org.springframework.boot.autoconfigure.SpringBootApplication;",
+            "import org.springframework.context.ApplicationEvent;",
+            "import org.springframework.context.ApplicationListener;",
+            "import org.springframework.context.ConfigurableApplicationContext;",
+            "import org.springframework.context.event.ContextRefreshedEvent;",
+            "",
+            "@SpringBootApplication",
+            "public class StartupApp {",
+            "",
+            "    public static void main(String[] args) throws Exception {",
+            "        System.out.println(\"" + MAIN_MARKER + "\" + System.currentTimeMillis());",
+            "        ClassLoader classLoader = StartupApp.class.getClassLoader();",
+            "        try (BufferedReader reader = new BufferedReader(new InputStreamReader(",
+            "                classLoader.getResourceAsStream(\"" + CLASSES_RESOURCE + "\"), StandardCharsets.UTF_8))) {",
+            "            String line;",
+            "            while ((line = reader.readLine()) != null) {",
+            "                Class.forName(line, false, classLoader);",
+            "            }",
+            "        }",
+            "        SpringApplication application = new SpringApplication(StartupApp.class);",
+            "        application.addListeners((ApplicationListener<ApplicationEvent>) (event) -> {",
+            "            if (event instanceof ContextRefreshedEvent) {",
+            "                System.out.println(\"" + REFRESHED_MARKER + "\" + System.currentTimeMillis());",
+            "            }",
+            "        });",
+            "        ConfigurableApplicationContext context = application.run(args);",
+            "        System.exit(SpringApplication.exit(context));",
+            "    }",
+            "}",
+            "");
+
+    private final int dependencies;
+
+    private final int classes;
+
+    private final List<File> springJars;
+
+    /**
+     * Create a generator.
+     *
+     * @param dependencies the total number of {@code BOOT-INF/lib} jars
+     * @param classes the number of synthetic classes spread over the synthetic jars
+     * @param springJars the Spring Boot starter jars the application runs on
+     */
+    public SyntheticApp(int dependencies, int classes, List<File> springJars) {
+        if (dependencies <= springJars.size()) {
+            throw new IllegalArgumentException("Need more than " + springJars.size() + " dependencies");
+        }
+        this.dependencies = dependencies;
+        this.classes = classes;
+        this.springJars = springJars;
+    }
+
+    public String getName() {
+        return "deps" + dependencies + "-classes" + classes;
+    }
+
+    /**
+     * Generate the application into a directory.
+     *
+     * @param directory the work directory, created if necessary
+     * @return the indexed fat jar
+     * @throws IOException if the application cannot be generated
+     */
+    public File generate(File directory) throws IOException {
+        File libs = new File(directory, "lib");
+        libs.mkdirs();
+        List<File> libraries = new ArrayList<>(springJars);
+        List<String> loadedClasses = new ArrayList<>();
+        int syntheticJars = dependencies - springJars.size();
+        for (int jar = 0; jar < syntheticJars; jar++) {
+            int from = (int) ((long) classes * jar / syntheticJars);
+            int to = (int) ((long) classes * (jar + 1) / syntheticJars);
+            libraries.add(writeDependency(new File(libs, "synthetic-" + jar + ".jar"), jar, from, to, loadedClasses));
+        }
+        File jar = new File(directory, getName() + ".jar");
+        writeApplicationJar(jar, new File(directory, "classes"), loadedClasses);
+        Repackager repackager = new Repackager(jar);
+        repackager.setLayoutFactory(new MyLayoutFactory());
+        repackager.setMainClass(MAIN_CLASS);
+        repackager.setBackupSource(false);
+        Libraries callback = (libraryCallback) -> {
+            for (File library : libraries) {
+                libraryCallback.library(new Library(library, LibraryScope.COMPILE));
+            }
+        };
+        repackager.repackage(callback);
+        JarIndexGenerator generator = new JarIndexGenerator(jar);
+        generator.setClassIndex(true);
+        generator.generate();
+        return jar;
+    }
+
+    private File writeDependency(File file, int jar, int from, int to, List<String> loadedClasses) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_TITLE, "synthetic-" + jar);
+        manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, "1.0");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            for (int i = from; i < to; i++) {
+                String className = "bench.dep" + jar + ".p" + ((i - from) / CLASSES_PER_PACKAGE) + ".C" + i;
+                if (i % LOAD_EVERY == 0) {
+                    loadedClasses.add(className);
+                }
+                out.putNextEntry(new JarEntry(className.replace('.', '/') + ".class"));
+                out.write(SyntheticFatJar.classFile(className.replace('.', '/')));
+                out.closeEntry();
+            }
+        }
+        return file;
+    }
+
+    private void writeApplicationJar(File jar, File classes, List<String> loadedClasses) throws IOException {
+        File source = new File(classes, "StartupApp.java");
+        classes.mkdirs();
+        Files.write(source.toPath(), MAIN_SOURCE.getBytes(StandardCharsets.UTF_8));
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("A JDK is required to compile the synthetic application");
+        }
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        String classpath = springJars.stream().map(File::getPath).collect(Collectors.joining(File.pathSeparator));
+        int result = compiler.run(null, null, errors, Arrays.asList("-d", classes.getPath(), "-cp", classpath,
+                "-source", "8", "-target", "8", "-nowarn", source.getPath()).toArray(new String[0]));
+        if (result != 0) {
+            throw new IllegalStateException("Failed to compile the synthetic application: " + errors);
+        }
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+            out.putNextEntry(new JarEntry("bench/app/StartupApp.class"));
+            Files.copy(new File(classes, "bench/app/StartupApp.class").toPath(), out);
+            out.closeEntry();
+            out.putNextEntry(new JarEntry(CLASSES_RESOURCE));
+            writeLines(out, loadedClasses);
+            out.closeEntry();
+            out.putNextEntry(new JarEntry("application.properties"));
+            writeLines(out, Arrays.asList("spring.main.banner-mode=off", "logging.level.root=warn"));
+            out.closeEntry();
+        }
+    }
+
+    private void writeLines(OutputStream out, List<String> lines) throws IOException {
+        for (String line : lines) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+    }
+}
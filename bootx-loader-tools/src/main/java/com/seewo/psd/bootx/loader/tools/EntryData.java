@@ -0,0 +1,54 @@
+package com.seewo.psd.bootx.loader.tools;
+
+/**
+ * Where the data of an entry is and how to read it.
+ */
+final class EntryData {
+    static final EntryData UNKNOWN = new EntryData(-1, -1, -1, -1);
+
+    private final long offset;
+    private final long compressedSize;
+    private final long size;
+    private final int method;
+
+    /**
+     * Create entry data.
+     *
+     * @param offset the offset of the entry data, or {@code -1} if unknown
+     * @param compressedSize the size of the entry data
+     * @param size the size of the entry once inflated
+     * @param method the compression method
+     */
+    EntryData(long offset, long compressedSize, long size, int method) {
+        this.offset = offset;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        this.method = method;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+    long getCompressedSize() {
+        return compressedSize;
+    }
+
+    long getSize() {
+        return size;
+    }
+
+    int getMethod() {
+        return method;
+    }
+
+    /**
+     * Move the entry data, e.g. from an offset in a nested jar to one in the fat jar.
+     *
+     * @param base the offset the current offset is relative to
+     * @return the moved entry data or {@link #UNKNOWN} if the offset is unknown
+     */
+    EntryData relativeTo(long base) {
+        return (offset >= 0) ? new EntryData(base + offset, compressedSize, size, method) : UNKNOWN;
+    }
+}
@@ -0,0 +1,573 @@
+package com.seewo.psd.bootx.loader.tools;
+
+import com.seewo.psd.bootx.loader.AggregatedResources;
+import com.seewo.psd.bootx.loader.BinaryIndex;
+import com.seewo.psd.bootx.loader.BinaryIndexWriter;
+import com.seewo.psd.bootx.loader.IndexedJarChecksum;
+import com.seewo.psd.bootx.loader.WarmupProfile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * Companion step to the {@code repackage} goal that scans a fat jar built with
+ * {@link MyLayoutFactory} and writes the {@link BinaryIndex} used by
+ * {@code JarIndexLaunchedURLClassLoader} into the archive.
+ * <p>
+ * Every {@code BOOT-INF/lib} jar is scanned on its own thread, unless a
+ * {@link #setListingCache listing cache} already holds its listing. With
+ * {@link #setStoreEntries stored entries}, or a jar repackaged with
+ * {@link MyLayoutFactory#setStoreEntries}, the classes and the entries of the nested jars
+ * are rewritten uncompressed.
+ * <p>
+ * The layout cannot write the index itself: it is called while the fat jar is still
+ * being written, and the index describes the finished jar. Without an index the loader
+ * still works, but every feature that reads one falls back. Run the generator after
+ * {@code spring-boot:repackage}, in the same {@code package} phase with the
+ * {@code exec-maven-plugin} as shown in the README, or from the command line:
+ * <pre>
+ * java -cp bootx-loader-tools.jar:bootx-loader.jar:commons-compress.jar \
+ *     com.seewo.psd.bootx.loader.tools.JarIndexGenerator target/app.jar
+ * </pre>
+ * {@link #main} throws rather than exits on bad arguments, so it can run inside the
+ * Maven JVM.
+ */
+public class JarIndexGenerator {
+    static final String INDEX_ENTRY = BinaryIndex.INDEX_LOCATION + BinaryIndex.INDEX_NAME;
+    static final String WARMUP_ENTRY = BinaryIndex.INDEX_LOCATION + WarmupProfile.WARMUP_NAME;
+
+    private static final String LIB_LOCATION = "BOOT-INF/lib/";
+    private static final String CLASSES_LOCATION = "BOOT-INF/classes/";
+
+    private final File file;
+    private final int parallelism;
+    private boolean classIndex;
+    private boolean aggregateResources;
+    private boolean storeEntries;
+    private File warmupProfile;
+    private ListingCache listingCache;
+    private boolean pruneListingCache;
+
+    public JarIndexGenerator(File file) {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    public JarIndexGenerator(File file, int parallelism) {
+        if (file == null) {
+            throw new IllegalArgumentException("File must not be null");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.file = file;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Also write the class table, mapping every class to the one jar that defines it. This
+     * makes the index larger but saves probing every jar of a split package.
+     *
+     * @param classIndex whether to write the class table
+     */
+    public void setClassIndex(boolean classIndex) {
+        this.classIndex = classIndex;
+    }
+
+    /**
+     * Also merge the {@code spring.factories} and {@code META-INF/services} files that
+     * several jars hold into one entry each, see {@link AggregatedResources}. The loader
+     * then returns the merged entry alone from {@code findResources}.
+     *
+     * @param aggregateResources whether to merge the resources
+     */
+    public void setAggregateResources(boolean aggregateResources) {
+        this.aggregateResources = aggregateResources;
+    }
+
+    /**
+     * Also rewrite the {@code BOOT-INF/classes} entries and the entries of every nested jar
+     * uncompressed, so that the loader defines them straight from the mapped fat jar. This
+     * is done anyway for a jar repackaged with {@link MyLayoutFactory#setStoreEntries}.
+     *
+     * @param storeEntries whether to store the entries
+     */
+    public void setStoreEntries(boolean storeEntries) {
+        this.storeEntries = storeEntries;
+    }
+
+    /**
+     * Embed a warmup profile recorded by a training run with
+     * {@code -Dbootx.warmup.record=<file>}. Without one, a profile embedded by an earlier
+     * run is kept.
+     *
+     * @param warmupProfile the recorded profile or {@code null}
+     */
+    public void setWarmupProfile(File warmupProfile) {
+        this.warmupProfile = warmupProfile;
+    }
+
+    /**
+     * Keep the listing of every nested jar in a directory, keyed by the SHA-256 of the
+     * jar, and only scan the jars no earlier run has listed. The index is the same as
+     * without the cache. Listings of jars the fat jar no longer contains are deleted, so use
+     * one directory per application. Jars rewritten with {@link #setStoreEntries stored
+     * entries} are always scanned, as they are read in full to be rewritten anyway.
+     *
+     * @param listingCache the cache directory or {@code null} to scan every jar
+     */
+    public void setListingCache(File listingCache) {
+        this.listingCache = (listingCache != null) ? new ListingCache(listingCache) : null;
+        this.pruneListingCache = true;
+    }
+
+    /**
+     * Share a listing cache with other generators, the caller prunes it once all of them
+     * have run.
+     */
+    void setListingCache(ListingCache listingCache) {
+        this.listingCache = listingCache;
+        this.pruneListingCache = false;
+    }
+
+    /**
+     * Scan the fat jar and rewrite it in place with the index appended. Any index written by
+     * a previous run is replaced, all other entries are copied without being recompressed.
+     *
+     * @throws IOException if the jar cannot be read or written
+     */
+    public void generate() throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".bootx.tmp");
+        byte[] launchScript = readLaunchScript();
+        try (ZipFile source = new ZipFile(new LaunchScriptSkippingChannel(file, launchScript.length), file.getName(),
+                "UTF8", true)) {
+            boolean storeEntries = this.storeEntries || source.getEntry(MyLayoutFactory.STORED_ENTRIES_MARKER) != null;
+            List<JarListing> listings = scan(source, storeEntries);
+            Map<String, byte[]> storedLibs = new HashMap<>();
+            for (JarListing listing : listings) {
+                if (listing.getStoredContent() != null) {
+                    storedLibs.put(listing.getEntryName(), listing.getStoredContent());
+                }
+            }
+            try (CountingOutputStream fileOutputStream = new CountingOutputStream(new FileOutputStream(tmp))) {
+                fileOutputStream.write(launchScript);
+                ZipArchiveOutputStream out = new ZipArchiveOutputStream(fileOutputStream);
+                Map<String, EntryData> entryData = new HashMap<>();
+                IndexedJarChecksum checksum = new IndexedJarChecksum();
+                byte[] warmup = (warmupProfile != null) ? Files.readAllBytes(warmupProfile.toPath()) : null;
+                Enumeration<ZipArchiveEntry> entries = source.getEntriesInPhysicalOrder();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    if (entry.getName().startsWith(BinaryIndex.INDEX_LOCATION)) {
+                        if (warmup == null && entry.getName().equals(WARMUP_ENTRY)) {
+                            try (InputStream in = source.getInputStream(entry)) {
+                                warmup = IOUtils.toByteArray(in);
+                            }
+                        }
+                        continue;
+                    }
+                    byte[] stored = storedLibs.remove(entry.getName());
+                    if (stored == null && storeEntries && entry.getName().startsWith(CLASSES_LOCATION)
+                            && entry.getMethod() != ZipEntry.STORED) {
+                        try (InputStream in = source.getInputStream(entry)) {
+                            stored = IOUtils.toByteArray(in);
+                        }
+                    }
+                    long localHeaderOffset = fileOutputStream.getBytesWritten() - launchScript.length;
+                    if (stored != null) {
+                        entry = new ZipArchiveEntry(entry);
+                        writeStoredEntry(out, entry, stored);
+                    } else {
+                        try (InputStream in = source.getRawInputStream(entry)) {
+                            out.addRawArchiveEntry(entry, in);
+                        }
+                    }
+                    // entries are written without a data descriptor, the data ends the entry
+                    long compressedSize = (stored != null) ? stored.length : entry.getCompressedSize();
+                    entryData.put(entry.getName(), new EntryData(fileOutputStream.getBytesWritten() - compressedSize,
+                            compressedSize, (stored != null) ? stored.length : entry.getSize(),
+                            (stored != null) ? ZipEntry.STORED : entry.getMethod()));
+                    checksum.addEntry(entry.getName(), entry.getMethod(), entry.getCrc(), entry.getCompressedSize(),
+                            entry.getSize(), localHeaderOffset);
+                }
+                // last, so that the offsets recorded in the index stay true
+                long time = getEntryTime(source);
+                writeIndex(out, buildIndex(listings, entryData, checksum.getValue()), time);
+                if (warmup != null) {
+                    writeStoredEntry(out, WARMUP_ENTRY, warmup, time);
+                }
+                if (aggregateResources) {
+                    for (Map.Entry<String, byte[]> aggregate : ResourceAggregator.aggregate(listings).entrySet()) {
+                        writeStoredEntry(out, AggregatedResources.LOCATION + aggregate.getKey(), aggregate.getValue(),
+                                time);
+                    }
+                }
+                out.finish();
+            }
+        } catch (IOException | RuntimeException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        try {
+            Files.setPosixFilePermissions(tmp.toPath(), Files.getPosixFilePermissions(file.toPath()));
+        } catch (UnsupportedOperationException ex) {
+            // not a posix file system, an executable jar has nothing to keep
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    List<JarListing> scan(ZipFile source, boolean storeEntries) throws IOException {
+        List<JarListing> listings = new ArrayList<>();
+        JarListing classes = new JarListing(CLASSES_LOCATION);
+        List<ZipArchiveEntry> libs = new ArrayList<>();
+        Enumeration<ZipArchiveEntry> entries = source.getEntries();
+        while (entries.hasMoreElements()) {
+            ZipArchiveEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.startsWith(CLASSES_LOCATION)) {
+                String entryName = name.substring(CLASSES_LOCATION.length());
+                classes.addEntry(entryName, EntryData.UNKNOWN);
+                if (aggregateResources && AggregatedResources.isAggregatable(entryName)) {
+                    try (InputStream in = source.getInputStream(entry)) {
+                        classes.addAggregatableResource(entryName, IOUtils.toByteArray(in));
+                    }
+                }
+            } else if (name.startsWith(LIB_LOCATION) && name.endsWith(".jar") && !entry.isDirectory()) {
+                libs.add(entry);
+            }
+        }
+        listings.add(classes);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, libs.size())));
+        try {
+            List<Future<JarListing>> futures = new ArrayList<>(libs.size());
+            for (ZipArchiveEntry lib : libs) {
+                futures.add(executor.submit(() -> scanNestedJar(source, lib, storeEntries)));
+            }
+            for (Future<JarListing> future : futures) {
+                listings.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + file, ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to scan " + file, ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (listingCache != null && pruneListingCache) {
+            listingCache.prune();
+        }
+        return listings;
+    }
+
+    /**
+     * List a nested jar from its central directory. Entry offsets are only usable when the
+     * nested jar is stored, which Spring Boot always does.
+     * <p>
+     * With stored entries the jar is rewritten first and listed as rewritten.
+     */
+    private JarListing scanNestedJar(ZipFile source, ZipArchiveEntry lib, boolean storeEntries) throws IOException {
+        boolean stored = storeEntries || lib.getMethod() == ZipEntry.STORED;
+        ListingCache listingCache = storeEntries ? null : this.listingCache;
+        if (listingCache == null) {
+            return scanNestedJar(source, lib, storeEntries, stored);
+        }
+        String key;
+        try (InputStream in = source.getInputStream(lib)) {
+            key = ListingCache.key(in, stored, aggregateResources);
+        }
+        JarListing listing = listingCache.read(key, lib.getName());
+        if (listing == null) {
+            listing = scanNestedJar(source, lib, false, stored);
+            listingCache.write(key, listing);
+        }
+        return listing;
+    }
+
+    private JarListing scanNestedJar(ZipFile source, ZipArchiveEntry lib, boolean storeEntries, boolean stored)
+            throws IOException {
+        JarListing listing = new JarListing(lib.getName());
+        byte[] bytes;
+        try (InputStream in = source.getInputStream(lib)) {
+            bytes = IOUtils.toByteArray(in);
+        }
+        if (storeEntries) {
+            bytes = storeEntries(lib.getName(), bytes);
+            listing.setStoredContent(bytes);
+        }
+        try (ZipFile nested = new ZipFile(new SeekableInMemoryByteChannel(bytes), lib.getName(), "UTF8", true)) {
+            Enumeration<ZipArchiveEntry> entries = nested.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                listing.addEntry(entry.getName(), stored ? new EntryData(entry.getDataOffset(), entry.getCompressedSize(),
+                        entry.getSize(), entry.getMethod()) : EntryData.UNKNOWN);
+                if (aggregateResources && AggregatedResources.isAggregatable(entry.getName())) {
+                    try (InputStream in = nested.getInputStream(entry)) {
+                        listing.addAggregatableResource(entry.getName(), IOUtils.toByteArray(in));
+                    }
+                }
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * Build the index.
+     *
+     * @param listings the scanned roots
+     * @param entryData the data of every entry in the rewritten fat jar
+     * @param jarChecksum the {@link IndexedJarChecksum} of the rewritten fat jar
+     * @return the index bytes
+     */
+    private byte[] buildIndex(List<JarListing> listings, Map<String, EntryData> entryData, long jarChecksum) {
+        BinaryIndexWriter writer = new BinaryIndexWriter();
+        writer.setJarChecksum(jarChecksum);
+        for (JarListing listing : listings) {
+            if (listing.getPackages().isEmpty() && listing.getResources().isEmpty()) {
+                continue;
+            }
+            int jarId = writer.addJar(listing.getName());
+            listing.getPackages().forEach((packageName) -> writer.addPackage(packageName, jarId));
+            listing.getResources().forEach((resource) -> writer.addResource(resource, jarId));
+            if (classIndex) {
+                listing.getClasses().forEach((className, data) -> {
+                    EntryData resolved = resolveEntryData(listing, className, data, entryData);
+                    writer.addClass(className, jarId, resolved.getOffset(), resolved.getCompressedSize(),
+                            resolved.getSize(), resolved.getMethod());
+                });
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    private EntryData resolveEntryData(JarListing listing, String className, EntryData data,
+            Map<String, EntryData> entryData) {
+        if (listing.isSigned()) {
+            return EntryData.UNKNOWN;
+        }
+        if (listing.isDirectory()) {
+            return entryData.getOrDefault(listing.getEntryName() + className, EntryData.UNKNOWN);
+        }
+        EntryData jar = entryData.get(listing.getEntryName());
+        return (jar != null) ? data.relativeTo(jar.getOffset()) : EntryData.UNKNOWN;
+    }
+
+    /**
+     * Write the index {@link ZipEntry#STORED STORED} so that the loader can map it in place.
+     */
+    private void writeIndex(ZipArchiveOutputStream out, byte[] index, long time) throws IOException {
+        writeStoredEntry(out, BinaryIndex.INDEX_LOCATION, new byte[0], time);
+        writeStoredEntry(out, INDEX_ENTRY, index, time);
+    }
+
+    /**
+     * Get the time to give the entries written by the generator: that of the manifest, so
+     * that the same fat jar is always rewritten to the same bytes.
+     *
+     * @return the time or {@code -1} to use the current time
+     */
+    private static long getEntryTime(ZipFile source) {
+        ZipArchiveEntry manifest = source.getEntry("META-INF/MANIFEST.MF");
+        return (manifest != null) ? manifest.getTime() : -1;
+    }
+
+    /**
+     * Rewrite a jar with every compressed entry stored. Entries keep their order and
+     * attributes, so a signed jar stays signed.
+     */
+    private static byte[] storeEntries(String name, byte[] jar) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(jar.length * 2);
+        try (ZipFile source = new ZipFile(new SeekableInMemoryByteChannel(jar), name, "UTF8", true);
+             ZipArchiveOutputStream out = new ZipArchiveOutputStream(bytes)) {
+            Enumeration<ZipArchiveEntry> entries = source.getEntriesInPhysicalOrder();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    try (InputStream in = source.getRawInputStream(entry)) {
+                        out.addRawArchiveEntry(entry, in);
+                    }
+                } else {
+                    try (InputStream in = source.getInputStream(entry)) {
+                        writeStoredEntry(out, new ZipArchiveEntry(entry), IOUtils.toByteArray(in));
+                    }
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeStoredEntry(ZipArchiveOutputStream out, String name, byte[] bytes, long time)
+            throws IOException {
+        ZipArchiveEntry entry = new ZipArchiveEntry(name);
+        if (time != -1) {
+            entry.setTime(time);
+        }
+        writeStoredEntry(out, entry, bytes);
+    }
+
+    /**
+     * Write an entry stored, keeping the name and attributes of {@code entry}.
+     */
+    private static void writeStoredEntry(ZipArchiveOutputStream out, ZipArchiveEntry entry, byte[] bytes)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(bytes.length);
+        entry.setCompressedSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * Keep a launch script prepended by {@code <executable>true</executable>}.
+     */
+    private byte[] readLaunchScript() throws IOException {
+        ByteArrayOutputStream script = new ByteArrayOutputStream();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            int b;
+            int signature = 0;
+            while ((b = in.read()) != -1) {
+                script.write(b);
+                signature = (signature >>> 8) | (b << 24);
+                if (signature == 0x04034b50) {
+                    break;
+                }
+            }
+        }
+        byte[] bytes = script.toByteArray();
+        byte[] prefix = new byte[Math.max(0, bytes.length - 4)];
+        System.arraycopy(bytes, 0, prefix, 0, prefix.length);
+        return prefix;
+    }
+
+    /**
+     * Zip offsets of a jar with a launch script are relative to the end of the script,
+     * which {@link ZipFile} does not account for.
+     */
+    private static final class LaunchScriptSkippingChannel implements SeekableByteChannel {
+        private final FileChannel channel;
+        private final long offset;
+
+        LaunchScriptSkippingChannel(File file, long offset) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.offset = offset;
+            this.channel.position(offset);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position() - offset;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            channel.position(newPosition + offset);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size() - offset;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean classIndex = false;
+        boolean aggregateResources = false;
+        boolean storeEntries = false;
+        File warmupProfile = null;
+        File listingCache = null;
+        List<String> jars = new ArrayList<>();
+        for (String arg : args) {
+            if ("--class-index".equals(arg)) {
+                classIndex = true;
+            } else if ("--aggregate-resources".equals(arg)) {
+                aggregateResources = true;
+            } else if ("--store-entries".equals(arg)) {
+                storeEntries = true;
+            } else if (arg.startsWith("--warmup-profile=")) {
+                warmupProfile = new File(arg.substring("--warmup-profile=".length()));
+            } else if (arg.startsWith("--listing-cache=")) {
+                listingCache = new File(arg.substring("--listing-cache=".length()));
+            } else {
+                jars.add(arg);
+            }
+        }
+        if (jars.isEmpty()) {
+            throw new IllegalArgumentException("Usage: JarIndexGenerator [--class-index] [--aggregate-resources] [--store-entries] [--warmup-profile=<file>] [--listing-cache=<dir>] <fat-jar> [<fat-jar>...]");
+        }
+        // shared, so that the listings of one jar are not pruned as unused by the next
+        ListingCache sharedListingCache = (listingCache != null) ? new ListingCache(listingCache) : null;
+        for (String jar : jars) {
+            long start = System.currentTimeMillis();
+            JarIndexGenerator generator = new JarIndexGenerator(new File(jar));
+            generator.setClassIndex(classIndex);
+            generator.setAggregateResources(aggregateResources);
+            generator.setStoreEntries(storeEntries);
+            generator.setWarmupProfile(warmupProfile);
+            generator.setListingCache(sharedListingCache);
+            generator.generate();
+            System.out.println("bootx index written to " + jar + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (sharedListingCache != null) {
+            sharedListingCache.prune();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.seewo.psd.bootx.loader.tools;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The packages, classes and resources found in one classpath root of a fat jar, either
+ * a nested {@code BOOT-INF/lib} jar or {@code BOOT-INF/classes}.
+ */
+final class JarListing {
+    private final String entryName;
+    private final Set<String> packages = new TreeSet<>();
+    private final Map<String, EntryData> classes = new TreeMap<>();
+    private final Set<String> resources = new TreeSet<>();
+    private final Map<String, byte[]> aggregatableResources = new TreeMap<>();
+    private byte[] storedContent;
+    private boolean signed;
+
+    /**
+     * Create a listing.
+     *
+     * @param entryName the fat jar entry of the root, {@code BOOT-INF/classes/} or a nested jar
+     */
+    JarListing(String entryName) {
+        this.entryName = entryName;
+    }
+
+    /**
+     * Record an entry of this root.
+     *
+     * @param entryName the entry name relative to the root
+     * @param entryData the entry data relative to the start of a nested jar or
+     * {@link EntryData#UNKNOWN}, a directory root has no offsets of its own
+     */
+    void addEntry(String entryName, EntryData entryData) {
+        if (entryName.isEmpty() || entryName.endsWith("/") || entryName.startsWith("META-INF/versions/")) {
+            return;
+        }
+        if (entryName.startsWith("META-INF/") && entryName.indexOf('/', "META-INF/".length()) < 0
+                && (entryName.endsWith(".SF") || entryName.endsWith(".RSA") || entryName.endsWith(".DSA")
+                || entryName.endsWith(".EC"))) {
+            signed = true;
+        }
+        if (entryName.endsWith(".class")) {
+            int lastSlash = entryName.lastIndexOf('/');
+            if (lastSlash > 0) {
+                packages.add(entryName.substring(0, lastSlash));
+                classes.put(entryName, entryData);
+            }
+        } else {
+            resources.add(entryName);
+        }
+    }
+
+    /**
+     * Get the name the loader knows this root by, e.g. {@code /BOOT-INF/lib/foo.jar}.
+     *
+     * @return the root name
+     */
+    String getName() {
+        return "/" + (isDirectory() ? entryName.substring(0, entryName.length() - 1) : entryName);
+    }
+
+    String getEntryName() {
+        return entryName;
+    }
+
+    boolean isDirectory() {
+        return entryName.endsWith("/");
+    }
+
+    /**
+     * Return if this root holds signature files, in which case its classes need the code
+     * signers only the loader's {@link java.util.jar.JarFile} verifies.
+     */
+    boolean isSigned() {
+        return signed;
+    }
+
+    Set<String> getPackages() {
+        return packages;
+    }
+
+    /**
+     * Get the class entries of this root.
+     *
+     * @return class entry names mapped to their data in the nested jar
+     */
+    Map<String, EntryData> getClasses() {
+        return classes;
+    }
+
+    Set<String> getResources() {
+        return resources;
+    }
+
+    /**
+     * Keep the content of a resource to merge with the copies in other roots.
+     *
+     * @param entryName the resource name relative to the root
+     * @param content the resource content
+     */
+    void addAggregatableResource(String entryName, byte[] content) {
+        aggregatableResources.put(entryName, content);
+    }
+
+    Map<String, byte[]> getAggregatableResources() {
+        return aggregatableResources;
+    }
+
+    /**
+     * Keep the nested jar rewritten with stored entries, which the listed offsets refer to.
+     *
+     * @param storedContent the rewritten jar
+     */
+    void setStoredContent(byte[] storedContent) {
+        this.storedContent = storedContent;
+    }
+
+    /**
+     * Get the nested jar rewritten with stored entries.
+     *
+     * @return the rewritten jar or {@code null} if the jar is copied as it is
+     */
+    byte[] getStoredContent() {
+        return storedContent;
+    }
+}
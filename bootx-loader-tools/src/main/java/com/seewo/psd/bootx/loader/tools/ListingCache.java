@@ -0,0 +1,184 @@
+package com.seewo.psd.bootx.loader.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Listings of nested jars kept between runs of {@link JarIndexGenerator}, one file per
+ * jar content. A jar whose SHA-256 matches a cached listing is not scanned again. The
+ * listing is replayed into the same {@link JarListing} a scan would have produced, so
+ * the index comes out identical either way.
+ * <p>
+ * The directory holds the listings of one application: {@link #prune()} removes those
+ * the last run did not use, which keeps it from growing with every dependency upgrade.
+ * <p>
+ * Layout, all integers big-endian, strings in modified UTF-8:
+ * <pre>
+ * header    int magic, int version
+ * classes   int count, count * (utf name, long offset, long compressedSize, long size, int method)
+ * resources int count, count * (utf name)
+ * contents  int count, count * (utf name, int length, byte[length] content)
+ * </pre>
+ */
+final class ListingCache {
+
+    private static final int MAGIC = 0x4254584c; // BTXL
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".listing";
+
+    private final File directory;
+
+    private final Set<String> usedKeys = ConcurrentHashMap.newKeySet();
+
+    ListingCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Compute the key of a jar.
+     *
+     * @param jar the jar content, read to its end but not closed
+     * @param offsets whether the listing records entry offsets
+     * @param aggregateResources whether the listing keeps aggregatable resources
+     * @return the key
+     * @throws IOException if the jar cannot be read
+     */
+    static String key(InputStream jar, boolean offsets, boolean aggregateResources) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        byte[] buffer = new byte[65536];
+        int count;
+        while ((count = jar.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+        }
+        StringBuilder key = new StringBuilder(80);
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        // the same jar lists differently depending on how it is scanned
+        return key.append(offsets ? "-offsets" : "").append(aggregateResources ? "-aggregate" : "").toString();
+    }
+
+    /**
+     * Read a cached listing.
+     *
+     * @param key the key of the jar
+     * @param entryName the fat jar entry of the jar
+     * @return the listing or {@code null} if none is cached or it cannot be read
+     */
+    JarListing read(String key, String entryName) {
+        usedKeys.add(key);
+        File file = new File(directory, key + SUFFIX);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            JarListing listing = new JarListing(entryName);
+            for (int i = in.readInt(); i > 0; i--) {
+                listing.addEntry(in.readUTF(), new EntryData(in.readLong(), in.readLong(), in.readLong(), in.readInt()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                listing.addEntry(in.readUTF(), EntryData.UNKNOWN);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                listing.addAggregatableResource(name, content);
+            }
+            return listing;
+        } catch (IOException ex) {
+            // unreadable or truncated, the jar is scanned and the listing written again
+            return null;
+        }
+    }
+
+    /**
+     * Cache a listing. The file is replaced in one step, so that builds running
+     * concurrently never read it half written.
+     *
+     * @param key the key of the jar
+     * @param listing the listing
+     * @throws IOException if the file cannot be written
+     */
+    void write(String key, JarListing listing) throws IOException {
+        usedKeys.add(key);
+        Files.createDirectories(directory.toPath());
+        File file = new File(directory, key + SUFFIX);
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(listing.getClasses().size());
+                for (Map.Entry<String, EntryData> entry : listing.getClasses().entrySet()) {
+                    EntryData data = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(data.getOffset());
+                    out.writeLong(data.getCompressedSize());
+                    out.writeLong(data.getSize());
+                    out.writeInt(data.getMethod());
+                }
+                out.writeInt(listing.getResources().size());
+                for (String resource : listing.getResources()) {
+                    out.writeUTF(resource);
+                }
+                out.writeInt(listing.getAggregatableResources().size());
+                for (Map.Entry<String, byte[]> entry : listing.getAggregatableResources().entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().length);
+                    out.write(entry.getValue());
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    /**
+     * Delete the cached listings no {@link #read} or {@link #write} of this run asked for,
+     * those of jars the application no longer depends on. Nothing is deleted if the cache
+     * was not used at all.
+     *
+     * @throws IOException if a listing cannot be deleted
+     */
+    void prune() throws IOException {
+        if (usedKeys.isEmpty()) {
+            return;
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!usedKeys.contains(name.substring(0, name.length() - SUFFIX.length()))) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.seewo.psd.bootx.loader.tools;
 
 import org.springframework.boot.loader.tools.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Locale;
@@ -10,6 +11,35 @@ public class MyLayoutFactory implements LayoutFactory {
     private static final String NESTED_LOADER_JAR = "META-INF/loader/spring-boot-loader.jar";
     private static final String NESTED_LOADER_JAR_BOOTX = "META-INF/loader/bootx-loader.jar";
 
+    /**
+     * Marker written by a layout with {@link #setStoreEntries stored entries}, telling
+     * {@link JarIndexGenerator} to store the entries.
+     */
+    static final String STORED_ENTRIES_MARKER = "META-INF/bootx-stored-entries";
+
+    private boolean storeEntries;
+
+    /**
+     * Store the classes and the entries of every nested jar uncompressed, so that the
+     * loader defines classes straight from the mapped fat jar instead of inflating them.
+     * The jar gets larger, typically two to three times. The entries are rewritten by
+     * {@link JarIndexGenerator}, the repackaging itself only marks the jar, e.g.:
+     * <pre>
+     * &lt;layoutFactory implementation="com.seewo.psd.bootx.loader.tools.MyLayoutFactory"&gt;
+     *     &lt;storeEntries&gt;true&lt;/storeEntries&gt;
+     * &lt;/layoutFactory&gt;
+     * </pre>
+     *
+     * @param storeEntries whether to store the entries
+     */
+    public void setStoreEntries(boolean storeEntries) {
+        this.storeEntries = storeEntries;
+    }
+
+    public boolean isStoreEntries() {
+        return storeEntries;
+    }
+
     @Override
     public Layout getLayout(File file) {
         if (file == null) {
@@ -17,17 +47,30 @@ public class MyLayoutFactory implements LayoutFactory {
         }
         String lowerCaseFileName = file.getName().toLowerCase(Locale.ENGLISH);
         if (lowerCaseFileName.endsWith(".jar")) {
-            return new Jar();
+            return new Jar(storeEntries);
         }
         return Layouts.forFile(file);
     }
 
 
     public static class Jar implements RepackagingLayout, CustomLoaderLayout {
+        private final boolean storeEntries;
+
+        public Jar() {
+            this(false);
+        }
+
+        public Jar(boolean storeEntries) {
+            this.storeEntries = storeEntries;
+        }
+
         @Override
         public void writeLoadedClasses(LoaderClassesWriter writer) throws IOException {
             writer.writeLoaderClasses(NESTED_LOADER_JAR);
             writer.writeLoaderClasses(NESTED_LOADER_JAR_BOOTX);
+            if (storeEntries) {
+                writer.writeEntry(STORED_ENTRIES_MARKER, new ByteArrayInputStream(new byte[0]));
+            }
         }
 
         @Override
@@ -0,0 +1,139 @@
+package com.seewo.psd.bootx.loader.tools;
+
+import com.seewo.psd.bootx.loader.AggregatedResources;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Merges the {@link AggregatedResources aggregatable} resources of all classpath roots
+ * into one entry each, the way their readers would combine the separate copies.
+ * <p>
+ * {@code spring.factories} values are joined per key and de-duplicated, as
+ * {@code SpringFactoriesLoader} does. Service files keep one provider per line with
+ * comments dropped and duplicates removed, as {@code ServiceLoader} does. Both keep
+ * classpath order. Resources only one root holds are left alone.
+ */
+final class ResourceAggregator {
+
+    private ResourceAggregator() {
+    }
+
+    /**
+     * Merge the resources of the given roots.
+     *
+     * @param listings the scanned roots in classpath order
+     * @return the merged content by resource name, in name order
+     */
+    static Map<String, byte[]> aggregate(List<JarListing> listings) {
+        Map<String, List<byte[]>> contributions = new TreeMap<>();
+        for (JarListing listing : listings) {
+            listing.getAggregatableResources().forEach((name, content) ->
+                    contributions.computeIfAbsent(name, (key) -> new ArrayList<>()).add(content));
+        }
+        Map<String, byte[]> aggregates = new TreeMap<>();
+        contributions.forEach((name, contents) -> {
+            if (contents.size() > 1) {
+                aggregates.put(name, name.equals(AggregatedResources.SPRING_FACTORIES)
+                        ? mergeFactories(contents) : mergeServices(contents));
+            }
+        });
+        return aggregates;
+    }
+
+    private static byte[] mergeFactories(List<byte[]> contents) {
+        Map<String, Set<String>> factories = new TreeMap<>();
+        for (byte[] content : contents) {
+            Properties properties = new Properties();
+            try {
+                properties.load(new ByteArrayInputStream(content));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+                Set<String> values = factories.computeIfAbsent(key.trim(), (k) -> new LinkedHashSet<>());
+                for (String value : properties.getProperty(key).split(",")) {
+                    if (!value.trim().isEmpty()) {
+                        values.add(value.trim());
+                    }
+                }
+            }
+        }
+        StringBuilder merged = new StringBuilder();
+        factories.forEach((key, values) -> {
+            appendEscaped(merged, key, true);
+            merged.append('=');
+            appendEscaped(merged, String.join(",", values), false);
+            merged.append('\n');
+        });
+        return merged.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Escape for {@link Properties#load(java.io.InputStream)}, which reads ISO 8859-1.
+     */
+    private static void appendEscaped(StringBuilder out, String value, boolean key) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case ' ':
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    if (key || i == 0) {
+                        out.append('\\');
+                    }
+                    out.append(c);
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+    }
+
+    private static byte[] mergeServices(List<byte[]> contents) {
+        Set<String> providers = new LinkedHashSet<>();
+        for (byte[] content : contents) {
+            for (String line : new String(content, StandardCharsets.UTF_8).split("\r\n|\r|\n")) {
+                int comment = line.indexOf('#');
+                String provider = ((comment >= 0) ? line.substring(0, comment) : line).trim();
+                if (!provider.isEmpty()) {
+                    providers.add(provider);
+                }
+            }
+        }
+        StringBuilder merged = new StringBuilder();
+        providers.forEach((provider) -> merged.append(provider).append('\n'));
+        return merged.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
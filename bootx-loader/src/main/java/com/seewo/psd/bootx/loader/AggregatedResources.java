@@ -0,0 +1,37 @@
+package com.seewo.psd.bootx.loader;
+
+/**
+ * Resources that every jar may contribute to and that are always read in full, such as
+ * {@code META-INF/spring.factories} and {@code META-INF/services} files.
+ * <p>
+ * When more than one jar holds such a resource, bootx-loader-tools can merge all copies,
+ * in classpath order, into one entry under {@link #LOCATION} in the fat jar.
+ * {@link JarIndexLaunchedURLClassLoader#findResources(String)} then returns that single
+ * entry instead of a URL into every contributing jar, so callers open and parse one file.
+ */
+public final class AggregatedResources {
+
+    /**
+     * Location of the merged entries inside the fat jar, followed by the resource name.
+     */
+    public static final String LOCATION = BinaryIndex.INDEX_LOCATION + "aggregates/";
+
+    public static final String SPRING_FACTORIES = "META-INF/spring.factories";
+
+    public static final String SERVICES_LOCATION = "META-INF/services/";
+
+    private AggregatedResources() {
+    }
+
+    /**
+     * Return if a resource is one that can be merged.
+     *
+     * @param name the resource name
+     * @return if the resource may have a merged entry
+     */
+    public static boolean isAggregatable(String name) {
+        return name.equals(SPRING_FACTORIES)
+                || (name.startsWith(SERVICES_LOCATION) && name.length() > SERVICES_LOCATION.length()
+                        && name.indexOf('/', SERVICES_LOCATION.length()) < 0);
+    }
+}
@@ -0,0 +1,436 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Read-only view of the binary jar index written by {@link BinaryIndexWriter}. Lookups
+ * run directly against the (usually memory-mapped) buffer, nothing is copied into Java
+ * collections.
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ * header       int magic, int version, int jarTable, int packageTable, int resourceTable, int classTable,
+ *              int directoryTable, long jarChecksum
+ * jarTable     int count, count * int recordOffset
+ * table        int mask, (mask + 1) * (int hash, int recordOffset)    open addressing, 0 = empty slot
+ * record       ushort keyLength, byte[keyLength] utf8Key, ushort jarCount, jarCount * ushort jarId
+ * classRecord  ushort keyLength, byte[keyLength] utf8Key, ushort jarId, int dataOffset, int compressedSize,
+ *              int size, ushort method
+ * dirRecord    record, int resourceStart, int resourceEnd, int classStart, int classEnd
+ * </pre>
+ * The class table is optional ({@code classTable} is {@code 0} without it). When present it
+ * resolves a class entry name straight to the one jar that defines it and where its
+ * entry data is in the fat jar: the data offset, or {@code -1} if that is unknown, and
+ * the sizes and compression method to read it with, without the nested jar's central
+ * directory.
+ * <p>
+ * The directory table holds every directory of every root, keyed without the trailing
+ * slash. Resource and class records are written in key order, so the entries below a
+ * directory are one run of records; a directory record holds the bounds of its runs,
+ * and {@link #forEachEntry} lists a directory tree by walking just those records.
+ * The jar checksum is the {@link IndexedJarChecksum} of the fat jar the index was built
+ * for; the loader does not use an index built for another jar.
+ * Slot hashes are {@link String#hashCode()} of the key, so a lookup never has to hash the
+ * key bytes.
+ */
+public final class BinaryIndex {
+
+    /**
+     * Location of the index entries inside the fat jar, written by bootx-loader-tools.
+     */
+    public static final String INDEX_LOCATION = "META-INF/bootx/";
+
+    public static final String INDEX_NAME = "INDEX.BIN";
+
+    static final int MAGIC = 0x42545849; // BTXI
+
+    static final int VERSION = 5;
+
+    static final int HEADER_SIZE = 36;
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final int CLASS_RECORD_SIZE = 18; // without the key
+
+    private final ByteBuffer buffer;
+
+    private final int jarTable;
+
+    private final int packageTable;
+
+    private final int resourceTable;
+
+    private final int classTable;
+
+    private final int directoryTable;
+
+    private BinaryIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.jarTable = buffer.getInt(8);
+        this.packageTable = buffer.getInt(12);
+        this.resourceTable = buffer.getInt(16);
+        this.classTable = buffer.getInt(20);
+        this.directoryTable = buffer.getInt(24);
+    }
+
+    /**
+     * Wrap an index buffer.
+     *
+     * @param buffer the index bytes, position 0 is the start of the header
+     * @return the index or {@code null} if the buffer does not hold a supported index
+     */
+    public static BinaryIndex of(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION) {
+            return null;
+        }
+        return new BinaryIndex(buffer);
+    }
+
+    /**
+     * Memory-map an index file.
+     *
+     * @param file the index file
+     * @return the index or {@code null} if the file does not exist or is not a supported index
+     * @throws IOException if the file cannot be mapped
+     */
+    public static BinaryIndex map(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            return of(raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+        }
+    }
+
+    /**
+     * Get the checksum of the fat jar the index was built for.
+     *
+     * @return the {@link IndexedJarChecksum} of the jar
+     */
+    public long getJarChecksum() {
+        return buffer.getLong(28);
+    }
+
+    public int getJarCount() {
+        return buffer.getInt(jarTable);
+    }
+
+    public String getJarName(int jarId) {
+        return readKey(buffer.getInt(jarTable + 4 + jarId * 4));
+    }
+
+    private String readKey(int record) {
+        return readKey(record, buffer.getShort(record) & 0xFFFF);
+    }
+
+    private String readKey(int record, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(record + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Find the jars holding classes of a package.
+     *
+     * @param packageEntryName the package in entry form, e.g. {@code org/springframework/boot}
+     * @return the record offset for {@link #getRecordJarCount}/{@link #getRecordJarId} or
+     * {@code -1} if the package is not indexed
+     */
+    public int findPackage(String packageEntryName) {
+        return find(packageTable, packageEntryName);
+    }
+
+    /**
+     * Find the jars holding a resource.
+     *
+     * @param name the resource name
+     * @return the record offset or {@code -1} if the resource is not indexed
+     */
+    public int findResource(String name) {
+        return find(resourceTable, name);
+    }
+
+    /**
+     * Find the jars holding the package of a class, without creating the package name.
+     *
+     * @param className the binary class name, e.g. {@code org.springframework.boot.SpringApplication}
+     * @return the record offset or {@code -1} if the package is not indexed or the class
+     * is in the default package
+     */
+    public int findPackageOf(String className) {
+        int lastDot = className.lastIndexOf('.');
+        return (lastDot > 0) ? find(packageTable, className, lastDot, true, "") : -1;
+    }
+
+    /**
+     * Find the jars holding entries below a directory.
+     *
+     * @param directoryName the directory, with or without a trailing slash, e.g. {@code com/acme/}
+     * @return the directory record for {@link #getRecordJarCount}/{@link #getRecordJarId}
+     * and {@link #forEachEntry} or {@code -1} if no root has the directory
+     */
+    public int findDirectory(String directoryName) {
+        int length = directoryName.length();
+        if (length > 0 && directoryName.charAt(length - 1) == '/') {
+            length--;
+        }
+        return (length > 0) ? find(directoryTable, directoryName, length, false, "") : -1;
+    }
+
+    /**
+     * List the resources and, with a class table, the classes of one jar below a directory,
+     * at any depth.
+     * <p>
+     * The class table records only the first jar of a class, so a jar sharing a package
+     * with another may hold classes it is not listed with. The listing stops and is
+     * incomplete as soon as it meets a class of another jar in a package this jar holds.
+     *
+     * @param directoryRecord the record returned by {@link #findDirectory}
+     * @param jarId the jar to list
+     * @param consumer receives the entry names, e.g. {@code com/acme/web/Controller.class}
+     * @return {@code false} if the listing is incomplete
+     */
+    public boolean forEachEntry(int directoryRecord, int jarId, Consumer<String> consumer) {
+        int keyLength = buffer.getShort(directoryRecord) & 0xFFFF;
+        int ranges = directoryRecord + 4 + keyLength + getRecordJarCount(directoryRecord) * 2;
+        for (int record = buffer.getInt(ranges), end = buffer.getInt(ranges + 4); record < end; ) {
+            int length = buffer.getShort(record) & 0xFFFF;
+            int jarCount = buffer.getShort(record + 2 + length) & 0xFFFF;
+            for (int i = 0; i < jarCount; i++) {
+                if ((buffer.getShort(record + 4 + length + i * 2) & 0xFFFF) == jarId) {
+                    consumer.accept(readKey(record));
+                    break;
+                }
+            }
+            record += 4 + length + jarCount * 2;
+        }
+        int packageRecord = -1;
+        int packageLength = -1;
+        for (int record = buffer.getInt(ranges + 8), end = buffer.getInt(ranges + 12); record < end; ) {
+            int length = buffer.getShort(record) & 0xFFFF;
+            if ((buffer.getShort(record + 2 + length) & 0xFFFF) == jarId) {
+                consumer.accept(readKey(record, length));
+            } else {
+                // classes are in key order, so the package is looked up once per run of them
+                int slash = lastSlash(record, length);
+                if (packageRecord < 0 || slash != packageLength || !keyPrefixEquals(record, packageRecord, slash)) {
+                    packageRecord = record;
+                    packageLength = slash;
+                    if (slash > 0 && recordHoldsJar(findPackage(readKey(record, slash)), jarId)) {
+                        return false;
+                    }
+                }
+            }
+            record += CLASS_RECORD_SIZE + length;
+        }
+        return true;
+    }
+
+    private int lastSlash(int record, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer.get(record + 2 + i) == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyPrefixEquals(int record, int otherRecord, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(record + 2 + i) != buffer.get(otherRecord + 2 + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean recordHoldsJar(int record, int jarId) {
+        if (record < 0) {
+            return false;
+        }
+        for (int i = 0, count = getRecordJarCount(record); i < count; i++) {
+            if (getRecordJarId(record, i) == jarId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasClassTable() {
+        return classTable != 0;
+    }
+
+    /**
+     * Find the jar defining a class.
+     *
+     * @param classEntryName the class entry name, e.g. {@code org/springframework/boot/SpringApplication.class}
+     * @return the class record offset for {@link #getClassJarId}/{@link #getClassDataOffset}
+     * or {@code -1} if the class is not indexed or there is no class table
+     */
+    public int findClass(String classEntryName) {
+        return (classTable != 0) ? find(classTable, classEntryName) : -1;
+    }
+
+    /**
+     * Find the jar defining a class by its binary name, hashing and comparing it as its
+     * entry name without creating that.
+     *
+     * @param className the binary class name, e.g. {@code org.springframework.boot.SpringApplication}
+     * @return the class record offset or {@code -1} if the class is not indexed or there
+     * is no class table
+     */
+    public int findClassOf(String className) {
+        return (classTable != 0) ? find(classTable, className, className.length(), true, CLASS_SUFFIX) : -1;
+    }
+
+    public int getClassJarId(int classRecord) {
+        int keyLength = buffer.getShort(classRecord) & 0xFFFF;
+        return buffer.getShort(classRecord + 2 + keyLength) & 0xFFFF;
+    }
+
+    /**
+     * Get the offset of a class's entry data in the fat jar.
+     *
+     * @param classRecord the class record
+     * @return the offset or {@code -1} if it is unknown, in which case the sizes and method
+     * are meaningless
+     */
+    public int getClassDataOffset(int classRecord) {
+        int keyLength = buffer.getShort(classRecord) & 0xFFFF;
+        return buffer.getInt(classRecord + 4 + keyLength);
+    }
+
+    public int getClassCompressedSize(int classRecord) {
+        int keyLength = buffer.getShort(classRecord) & 0xFFFF;
+        return buffer.getInt(classRecord + 8 + keyLength);
+    }
+
+    public int getClassSize(int classRecord) {
+        int keyLength = buffer.getShort(classRecord) & 0xFFFF;
+        return buffer.getInt(classRecord + 12 + keyLength);
+    }
+
+    /**
+     * Get the compression method of a class's entry.
+     *
+     * @param classRecord the class record
+     * @return {@link java.util.zip.ZipEntry#STORED} or {@link java.util.zip.ZipEntry#DEFLATED}
+     */
+    public int getClassMethod(int classRecord) {
+        int keyLength = buffer.getShort(classRecord) & 0xFFFF;
+        return buffer.getShort(classRecord + 16 + keyLength) & 0xFFFF;
+    }
+
+    public int getRecordJarCount(int record) {
+        int keyLength = buffer.getShort(record) & 0xFFFF;
+        return buffer.getShort(record + 2 + keyLength) & 0xFFFF;
+    }
+
+    public int getRecordJarId(int record, int i) {
+        int keyLength = buffer.getShort(record) & 0xFFFF;
+        return buffer.getShort(record + 4 + keyLength + i * 2) & 0xFFFF;
+    }
+
+    private int find(int table, String key) {
+        return find(table, key, key.hashCode(), key.length(), false, "");
+    }
+
+    /**
+     * Find a key given as the first {@code length} characters of {@code name}, with dots
+     * read as slashes if {@code dotted}, followed by {@code suffix}.
+     */
+    private int find(int table, String name, int length, boolean dotted, String suffix) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + (dotted ? slashed(name.charAt(i)) : name.charAt(i));
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            hash = 31 * hash + suffix.charAt(i);
+        }
+        return find(table, name, hash, length, dotted, suffix);
+    }
+
+    private int find(int table, String name, int hash, int length, boolean dotted, String suffix) {
+        int mask = buffer.getInt(table);
+        int slot = mix(hash) & mask;
+        while (true) {
+            int slotOffset = table + 4 + slot * 8;
+            int record = buffer.getInt(slotOffset + 4);
+            if (record == 0) {
+                return -1;
+            }
+            if (buffer.getInt(slotOffset) == hash && keyEquals(record, name, length, dotted, suffix)) {
+                return record;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static char slashed(char c) {
+        return (c == '.') ? '/' : c;
+    }
+
+    private static char keyChar(String name, int length, boolean dotted, String suffix, int i) {
+        if (i < length) {
+            return dotted ? slashed(name.charAt(i)) : name.charAt(i);
+        }
+        return suffix.charAt(i - length);
+    }
+
+    private boolean keyEquals(int record, String name, int length, boolean dotted, String suffix) {
+        int recordLength = buffer.getShort(record) & 0xFFFF;
+        int pos = record + 2;
+        int end = pos + recordLength;
+        int i = 0;
+        int keyLength = length + suffix.length();
+        while (pos < end) {
+            int b = buffer.get(pos) & 0xFF;
+            int codePoint;
+            if (b < 0x80) {
+                codePoint = b;
+                pos += 1;
+            } else if (b < 0xE0) {
+                codePoint = ((b & 0x1F) << 6) | (buffer.get(pos + 1) & 0x3F);
+                pos += 2;
+            } else if (b < 0xF0) {
+                codePoint = ((b & 0x0F) << 12) | ((buffer.get(pos + 1) & 0x3F) << 6) | (buffer.get(pos + 2) & 0x3F);
+                pos += 3;
+            } else {
+                codePoint = ((b & 0x07) << 18) | ((buffer.get(pos + 1) & 0x3F) << 12)
+                        | ((buffer.get(pos + 2) & 0x3F) << 6) | (buffer.get(pos + 3) & 0x3F);
+                pos += 4;
+            }
+            if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                if (i >= keyLength || keyChar(name, length, dotted, suffix, i) != codePoint) {
+                    return false;
+                }
+                i++;
+            } else {
+                if (i + 1 >= keyLength
+                        || keyChar(name, length, dotted, suffix, i) != Character.highSurrogate(codePoint)
+                        || keyChar(name, length, dotted, suffix, i + 1) != Character.lowSurrogate(codePoint)) {
+                    return false;
+                }
+                i += 2;
+            }
+        }
+        return i == keyLength;
+    }
+
+    /**
+     * Spread the high bits of {@link String#hashCode()} before masking, shared with
+     * {@link BinaryIndexWriter}.
+     */
+    static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,280 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+
+/**
+ * Builds the binary index read by {@link BinaryIndex}. Jars get ids in the order they
+ * are added, keys are written sorted, so the same input always gives the same bytes.
+ * The directory table is derived from the packages and resources added.
+ */
+public class BinaryIndexWriter {
+
+    private final Map<String, Integer> jars = new LinkedHashMap<>();
+
+    private final Map<String, Set<Integer>> packages = new TreeMap<>();
+
+    private final Map<String, Set<Integer>> resources = new TreeMap<>();
+
+    private final Map<String, long[]> classes = new TreeMap<>();
+
+    private long jarChecksum;
+
+    /**
+     * Set the checksum of the fat jar the index is for.
+     *
+     * @param jarChecksum the {@link IndexedJarChecksum} of the jar
+     */
+    public void setJarChecksum(long jarChecksum) {
+        this.jarChecksum = jarChecksum;
+    }
+
+    /**
+     * Add a jar, or return the id it already has.
+     *
+     * @param jarName the jar name as derived from its URL, e.g. {@code /BOOT-INF/lib/foo.jar}
+     * @return the jar id
+     */
+    public int addJar(String jarName) {
+        Integer id = jars.get(jarName);
+        if (id == null) {
+            if (jars.size() > 0xFFFF) {
+                throw new IllegalStateException("Too many jars for index: " + jars.size());
+            }
+            id = jars.size();
+            jars.put(jarName, id);
+        }
+        return id;
+    }
+
+    public void addPackage(String packageEntryName, int jarId) {
+        packages.computeIfAbsent(packageEntryName, (key) -> new TreeSet<>()).add(jarId);
+    }
+
+    public void addResource(String name, int jarId) {
+        resources.computeIfAbsent(name, (key) -> new TreeSet<>()).add(jarId);
+    }
+
+    /**
+     * Add a class to the optional class table, without its entry data.
+     *
+     * @param classEntryName the class entry name, e.g. {@code org/foo/Bar.class}
+     * @param jarId the jar id
+     */
+    public void addClass(String classEntryName, int jarId) {
+        addClass(classEntryName, jarId, -1, -1, -1, -1);
+    }
+
+    /**
+     * Add a class to the optional class table. A class already added for an earlier jar
+     * keeps that jar, as it would on the classpath.
+     *
+     * @param classEntryName the class entry name, e.g. {@code org/foo/Bar.class}
+     * @param jarId the jar id
+     * @param dataOffset the offset of the entry data in the fat jar or {@code -1} if unknown
+     * @param compressedSize the size of the entry data
+     * @param size the size of the class once inflated
+     * @param method the compression method of the entry, data of entries neither
+     * {@link ZipEntry#STORED stored} nor {@link ZipEntry#DEFLATED deflated} is not recorded
+     */
+    public void addClass(String classEntryName, int jarId, long dataOffset, long compressedSize, long size,
+            int method) {
+        boolean known = dataOffset >= 0 && dataOffset + compressedSize <= Integer.MAX_VALUE && compressedSize >= 0
+                && size >= 0 && size <= Integer.MAX_VALUE && (method == ZipEntry.STORED || method == ZipEntry.DEFLATED);
+        classes.putIfAbsent(classEntryName, known ? new long[]{jarId, dataOffset, compressedSize, size, method}
+                : new long[]{jarId, -1, 0, 0, 0});
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            writeTo(out);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return out.toByteArray();
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordData = new DataOutputStream(records);
+
+        List<Integer> jarRecords = new ArrayList<>(jars.size());
+        for (String jarName : jars.keySet()) {
+            jarRecords.add(BinaryIndex.HEADER_SIZE + recordData.size());
+            writeKey(recordData, jarName);
+        }
+        int[][] packageSlots = writeRecords(recordData, packages, null);
+        int[] resourceRecords = new int[resources.size() + 1];
+        int[][] resourceSlots = writeRecords(recordData, resources, resourceRecords);
+        int[] classRecords = new int[classes.size() + 1];
+        int[][] classSlots = classes.isEmpty() ? null : writeClassRecords(recordData, classRecords);
+        int[][] directorySlots = writeDirectoryRecords(recordData, resourceRecords, classRecords);
+        recordData.flush();
+
+        int jarTable = BinaryIndex.HEADER_SIZE + records.size();
+        int packageTable = jarTable + 4 + jarRecords.size() * 4;
+        int resourceTable = packageTable + 4 + packageSlots.length * 8;
+        int classTable = (classSlots != null) ? resourceTable + 4 + resourceSlots.length * 8 : 0;
+        int directoryTable = ((classSlots != null) ? classTable + 4 + classSlots.length * 8
+                : resourceTable + 4 + resourceSlots.length * 8);
+
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(BinaryIndex.MAGIC);
+        out.writeInt(BinaryIndex.VERSION);
+        out.writeInt(jarTable);
+        out.writeInt(packageTable);
+        out.writeInt(resourceTable);
+        out.writeInt(classTable);
+        out.writeInt(directoryTable);
+        out.writeLong(jarChecksum);
+        records.writeTo(out);
+        out.writeInt(jarRecords.size());
+        for (int record : jarRecords) {
+            out.writeInt(record);
+        }
+        writeTable(out, packageSlots);
+        writeTable(out, resourceSlots);
+        if (classSlots != null) {
+            writeTable(out, classSlots);
+        }
+        writeTable(out, directorySlots);
+        out.flush();
+    }
+
+    /**
+     * Write records in key order.
+     *
+     * @param recordOffsets receives the offset of every record, followed by the end offset,
+     * or {@code null}
+     */
+    private int[][] writeRecords(DataOutputStream recordData, Map<String, Set<Integer>> entries,
+            int[] recordOffsets) throws IOException {
+        int[][] slots = newSlots(entries.size());
+        int i = 0;
+        for (Map.Entry<String, Set<Integer>> entry : entries.entrySet()) {
+            int record = BinaryIndex.HEADER_SIZE + recordData.size();
+            writeKey(recordData, entry.getKey());
+            writeJarIds(recordData, entry.getValue());
+            putSlot(slots, entry.getKey(), record);
+            if (recordOffsets != null) {
+                recordOffsets[i++] = record;
+            }
+        }
+        if (recordOffsets != null) {
+            recordOffsets[i] = BinaryIndex.HEADER_SIZE + recordData.size();
+        }
+        return slots;
+    }
+
+    private int[][] writeClassRecords(DataOutputStream recordData, int[] recordOffsets) throws IOException {
+        int[][] slots = newSlots(classes.size());
+        int i = 0;
+        for (Map.Entry<String, long[]> entry : classes.entrySet()) {
+            int record = BinaryIndex.HEADER_SIZE + recordData.size();
+            writeKey(recordData, entry.getKey());
+            long[] value = entry.getValue();
+            recordData.writeShort((int) value[0]);
+            recordData.writeInt((int) value[1]);
+            recordData.writeInt((int) value[2]);
+            recordData.writeInt((int) value[3]);
+            recordData.writeShort((int) value[4]);
+            putSlot(slots, entry.getKey(), record);
+            recordOffsets[i++] = record;
+        }
+        recordOffsets[i] = BinaryIndex.HEADER_SIZE + recordData.size();
+        return slots;
+    }
+
+    /**
+     * Write a record for every directory holding a package or resource, with the bounds
+     * of the resource and class records below it.
+     */
+    private int[][] writeDirectoryRecords(DataOutputStream recordData, int[] resourceRecords, int[] classRecords)
+            throws IOException {
+        Map<String, Set<Integer>> directories = new TreeMap<>();
+        packages.forEach((packageName, jarIds) -> {
+            directories.computeIfAbsent(packageName, (key) -> new TreeSet<>()).addAll(jarIds);
+            addParentDirectories(directories, packageName, jarIds);
+        });
+        resources.forEach((name, jarIds) -> addParentDirectories(directories, name, jarIds));
+        String[] resourceKeys = resources.keySet().toArray(new String[0]);
+        String[] classKeys = classes.keySet().toArray(new String[0]);
+        int[][] slots = newSlots(directories.size());
+        for (Map.Entry<String, Set<Integer>> entry : directories.entrySet()) {
+            int record = BinaryIndex.HEADER_SIZE + recordData.size();
+            writeKey(recordData, entry.getKey());
+            writeJarIds(recordData, entry.getValue());
+            // '0' follows '/', so [dir/, dir0) holds exactly the keys below dir/
+            String from = entry.getKey() + '/';
+            String to = entry.getKey() + '0';
+            recordData.writeInt(resourceRecords[lowerBound(resourceKeys, from)]);
+            recordData.writeInt(resourceRecords[lowerBound(resourceKeys, to)]);
+            recordData.writeInt(classRecords[lowerBound(classKeys, from)]);
+            recordData.writeInt(classRecords[lowerBound(classKeys, to)]);
+            putSlot(slots, entry.getKey(), record);
+        }
+        return slots;
+    }
+
+    private static void addParentDirectories(Map<String, Set<Integer>> directories, String name, Set<Integer> jarIds) {
+        for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+            directories.computeIfAbsent(name.substring(0, slash), (key) -> new TreeSet<>()).addAll(jarIds);
+        }
+    }
+
+    private static int lowerBound(String[] sortedKeys, String key) {
+        int index = Arrays.binarySearch(sortedKeys, key);
+        return (index >= 0) ? index : -index - 1;
+    }
+
+    private void writeJarIds(DataOutputStream recordData, Set<Integer> jarIds) throws IOException {
+        recordData.writeShort(jarIds.size());
+        for (int jarId : jarIds) {
+            recordData.writeShort(jarId);
+        }
+    }
+
+    private int[][] newSlots(int size) {
+        return new int[Integer.highestOneBit(Math.max(1, size) * 2 - 1) << 1][];
+    }
+
+    private void putSlot(int[][] slots, String key, int record) {
+        int mask = slots.length - 1;
+        int hash = key.hashCode();
+        int slot = BinaryIndex.mix(hash) & mask;
+        while (slots[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = new int[]{hash, record};
+    }
+
+    private void writeKey(DataOutputStream recordData, String key) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Index key too long: " + key);
+        }
+        recordData.writeShort(bytes.length);
+        recordData.write(bytes);
+    }
+
+    private void writeTable(DataOutputStream out, int[][] slots) throws IOException {
+        out.writeInt(slots.length - 1);
+        for (int[] slot : slots) {
+            out.writeInt(slot != null ? slot[0] : 0);
+            out.writeInt(slot != null ? slot[1] : 0);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+/**
+ * Per-thread scratch buffers and {@link Inflater Inflaters} for reading class bytes, so
+ * that only the exact-size class arrays are left as garbage.
+ * <p>
+ * A thread holds at most one buffer and one inflater. Each is handed out until it is
+ * released, so a nested acquire on the same thread gets a fresh one rather than one in
+ * use. Buffers grown beyond {@link #MAX_RETAINED_SIZE} are not kept.
+ */
+final class BufferPool {
+
+    private static final int INITIAL_SIZE = 16384;
+
+    private static final int MAX_RETAINED_SIZE = 1 << 20;
+
+    private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<>();
+
+    private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<>();
+
+    private BufferPool() {
+    }
+
+    /**
+     * Take this thread's buffer.
+     *
+     * @param minimumSize the size the buffer needs at least
+     * @return the buffer, to be given back with {@link #release(byte[])}
+     */
+    static byte[] acquire(int minimumSize) {
+        byte[] buffer = BUFFER.get();
+        if (buffer == null || buffer.length < minimumSize) {
+            return new byte[Math.max(minimumSize, INITIAL_SIZE)];
+        }
+        BUFFER.set(null);
+        return buffer;
+    }
+
+    static void release(byte[] buffer) {
+        if (buffer.length <= MAX_RETAINED_SIZE) {
+            BUFFER.set(buffer);
+        }
+    }
+
+    /**
+     * Take this thread's inflater for raw deflate data.
+     *
+     * @return the inflater, to be given back with {@link #release(Inflater)}
+     */
+    static Inflater acquireInflater() {
+        Inflater inflater = INFLATER.get();
+        if (inflater == null) {
+            return new Inflater(true);
+        }
+        INFLATER.set(null);
+        return inflater;
+    }
+
+    static void release(Inflater inflater) {
+        inflater.reset();
+        INFLATER.set(inflater);
+    }
+
+    /**
+     * Read a stream to its end.
+     *
+     * @param inputStream the stream, not closed
+     * @return the bytes read, in an array of exactly their length
+     * @throws IOException if the stream cannot be read
+     */
+    static byte[] readFully(InputStream inputStream) throws IOException {
+        byte[] buffer = acquire(INITIAL_SIZE);
+        try {
+            int length = 0;
+            int count;
+            while ((count = inputStream.read(buffer, length, buffer.length - length)) != -1) {
+                length += count;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            release(buffer);
+        }
+    }
+}
@@ -1,25 +1,127 @@
 package com.seewo.psd.bootx.loader;
 
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.boot.loader.archive.Archive;
+
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * {@link JarIndexLaunchedURLClassLoader} with bounded caches in front of class and
+ * resource lookups. Misses are cached too, as startup condition checks probe for
+ * thousands of classes and resources that are not on the classpath. For classes only
+ * misses are cached: a loaded class is already found by {@link #findLoadedClass}.
+ * <p>
+ * Cache sizes can be set with the {@code bootx.cache.class-misses.size},
+ * {@code bootx.cache.resource.size} and {@code bootx.cache.resources.size} system
+ * properties. With {@link NegativeLookupSnapshot#SNAPSHOT_PROPERTY} set, the misses are
+ * kept across restarts of the same fat jar.
+ */
 public class CachedLaunchedURLClassLoader extends JarIndexLaunchedURLClassLoader {
     static {
         ClassLoader.registerAsParallelCapable();
     }
 
-    private final Map<String, LoadClassResult> classCache = new ConcurrentHashMap<>(3000);
-    private final Map<String, Optional<URL>> resourceUrlCache = new ConcurrentHashMap<>(3000);
-    private final Map<String, Optional<Enumeration<URL>>> resourcesUrlCache = new ConcurrentHashMap<>(300);
+    private final Cache<String, Boolean> classCache = newCache("bootx.cache.class-misses.size", 10000); // misses only
+    private final Cache<String, Optional<URL>> resourceUrlCache = newCache("bootx.cache.resource.size", 10000);
+    private final Cache<String, List<URL>> resourcesUrlCache = newCache("bootx.cache.resources.size", 1000);
 
     public CachedLaunchedURLClassLoader(URL[] urls, ClassLoader parent) {
-        super(urls, parent);
+        this(false, null, urls, parent);
+    }
+
+    public CachedLaunchedURLClassLoader(boolean exploded, Archive rootArchive, URL[] urls, ClassLoader parent) {
+        super(exploded, rootArchive, urls, parent);
         System.out.println("in CachedLaunchedURLClassLoader");
+        String snapshotLocation = System.getProperty(NegativeLookupSnapshot.SNAPSHOT_PROPERTY);
+        if (snapshotLocation != null) {
+            initSnapshot(new File(snapshotLocation));
+        }
+    }
+
+    /**
+     * Seed the caches with the misses of the previous launch of the same jar and write
+     * this launch's misses when the JVM exits.
+     */
+    private void initSnapshot(File file) {
+        long checksum = getRootChecksum();
+        if (checksum < 0) {
+            return;
+        }
+        try {
+            NegativeLookupSnapshot snapshot = NegativeLookupSnapshot.read(file, checksum);
+            if (snapshot != null) {
+                for (String name : snapshot.getClassNames()) {
+                    classCache.put(name, Boolean.TRUE);
+                }
+                for (String name : snapshot.getResourceNames()) {
+                    resourceUrlCache.put(name, Optional.empty());
+                }
+                for (String name : snapshot.getResourcesNames()) {
+                    resourcesUrlCache.put(name, Collections.emptyList());
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to read negative lookup snapshot " + file + ": " + ex);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                NegativeLookupSnapshot.write(file, checksum, missingClasses(), missingResources(),
+                        missingResourcesLists());
+            } catch (IOException ex) {
+                System.err.println("Failed to write negative lookup snapshot " + file + ": " + ex);
+            }
+        }, "bootx-snapshot-writer"));
+    }
+
+    private List<String> missingClasses() {
+        List<String> names = new ArrayList<>();
+        for (String name : classCache.asMap().keySet()) {
+            // a class defined after it was first missed, e.g. a generated proxy, is no miss
+            if (findLoadedClass(name) == null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private List<String> missingResources() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Optional<URL>> entry : resourceUrlCache.asMap().entrySet()) {
+            if (!entry.getValue().isPresent()) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    private List<String> missingResourcesLists() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, List<URL>> entry : resourcesUrlCache.asMap().entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    private static <V> Cache<String, V> newCache(String sizeProperty, int defaultSize) {
+        // maintenance runs on the calling thread, there is no pool to start this early
+        return Caffeine.newBuilder()
+                .maximumSize(Long.getLong(sizeProperty, defaultSize))
+                .executor(Runnable::run)
+                .recordStats()
+                .build();
     }
 
     @Override
@@ -29,64 +131,70 @@ public class CachedLaunchedURLClassLoader extends JarIndexLaunchedURLClassLoader
 
     @Override
     public URL findResource(String name) {
-        Optional<URL> urlOptional = resourceUrlCache.get(name);
-        if (urlOptional != null && urlOptional.isPresent()) {
+        Optional<URL> urlOptional = resourceUrlCache.getIfPresent(name);
+        if (urlOptional != null) {
+            if (getMetrics() != null) getMetrics().resourceCacheHit();
             return urlOptional.orElse(null);
         }
         URL url = super.findResource(name);
-        resourceUrlCache.put(name, url != null ? Optional.of(url) : Optional.empty());
+        resourceUrlCache.put(name, Optional.ofNullable(url));
         return url;
     }
 
     @Override
     public Enumeration<URL> findResources(String name) throws IOException {
-        Optional<Enumeration<URL>> urlOptional = resourcesUrlCache.get(name);
-        if (urlOptional != null && urlOptional.isPresent()) {
-            return urlOptional.orElse(null);
+        List<URL> urls = resourcesUrlCache.getIfPresent(name);
+        if (urls != null && getMetrics() != null) {
+            getMetrics().resourceCacheHit();
         }
-        Enumeration<URL> enumeration = super.findResources(name);
-        if (enumeration == null || !enumeration.hasMoreElements()) {
-            resourcesUrlCache.put(name, Optional.empty());
+        if (urls == null) {
+            // an enumeration can only be walked once, cache what it holds
+            Enumeration<URL> enumeration = super.findResources(name);
+            urls = (enumeration != null) ? Collections.list(enumeration) : Collections.emptyList();
+            resourcesUrlCache.put(name, urls);
         }
-        return enumeration;
+        return Collections.enumeration(urls);
     }
 
-    protected static class LoadClassResult {
-        private Class<?> clazz;
-        private ClassNotFoundException ex;
-        protected static LoadClassResult NOT_FOUND = new LoadClassResult();
-
-        public LoadClassResult() {
-        }
+    public CacheStats getClassCacheStats() {
+        return classCache.stats();
+    }
 
-        public LoadClassResult(ClassNotFoundException ex) {
-            this.ex = ex;
-        }
+    public CacheStats getResourceCacheStats() {
+        return resourceUrlCache.stats();
+    }
 
-        public Class<?> getClazz() {
-            return clazz;
-        }
+    public CacheStats getResourcesCacheStats() {
+        return resourcesUrlCache.stats();
+    }
 
-        public void setClazz(Class<?> clazz) {
-            this.clazz = clazz;
-        }
+    /**
+     * A {@link ClassNotFoundException} thrown for a cached miss, a new one every time as
+     * callers may add causes or suppressed exceptions to it. It carries no stack trace,
+     * which is the expensive part.
+     */
+    static final class CachedClassNotFoundException extends ClassNotFoundException {
 
-        public ClassNotFoundException getEx() {
-            return ex;
+        CachedClassNotFoundException(String name) {
+            super(name);
         }
 
-        public void setEx(ClassNotFoundException ex) {
-            this.ex = ex;
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
         }
     }
 
     private Class<?> loadClassWithCache(String name, boolean resolve) throws ClassNotFoundException {
-        LoadClassResult result = classCache.get(name);
-        if (result != null) {
-            if (result.getEx() != null) {
-                throw result.getEx();
+        if (classCache.getIfPresent(name) != null) {
+            if (getMetrics() != null) getMetrics().classCacheHit();
+            // a miss stays a miss unless the class was defined into this loader since
+            Class<?> defined = findLoadedClass(name);
+            if (defined == null) {
+                throw new CachedClassNotFoundException(name);
             }
-            return result.getClazz();
+            classCache.invalidate(name);
+            return defined;
         }
 
         try {
@@ -94,12 +202,9 @@ public class CachedLaunchedURLClassLoader extends JarIndexLaunchedURLClassLoader
             if (clazz == null) {
                 clazz = super.loadClass(name, resolve);
             }
-            if (clazz == null) {
-                classCache.put(name, LoadClassResult.NOT_FOUND);
-            }
             return clazz;
         } catch (ClassNotFoundException exception) {
-            classCache.put(name, new LoadClassResult(exception));
+            classCache.put(name, Boolean.TRUE);
             throw exception;
         }
     }
@@ -0,0 +1,225 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The inflated bytes of the compressed classes a launch defined, kept across restarts in
+ * one memory-mapped file.
+ * <p>
+ * With {@link #STORE_PROPERTY} set, the loader writes the classes it had to inflate during
+ * startup to that file, and on the next launch defines them straight from the mapped
+ * file. A store only applies to the fat jar it was written for: it holds the size,
+ * modification time and central directory checksum of the jar, and a store that does not
+ * match is ignored and rewritten.
+ * <p>
+ * Layout, all integers big-endian:
+ * <pre>
+ * header  int magic, int version, long jarSize, long jarLastModified, long jarChecksum, int table
+ * record  ushort keyLength, byte[keyLength] utf8ClassName, ushort jarId, int length, byte[length] classBytes
+ * table   int mask, (mask + 1) * (int hash, int recordOffset)    open addressing, 0 = empty slot
+ * </pre>
+ * The jar id is the {@link BinaryIndex} id of the jar the class was defined from, so a
+ * class is only taken from the store for the jar it would be loaded from anyway.
+ */
+public final class ClassDataStore {
+
+    /**
+     * File to keep the store in.
+     */
+    public static final String STORE_PROPERTY = "bootx.cache.classes";
+
+    private static final int MAGIC = 0x42545843; // BTXC
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 36;
+
+    private final ByteBuffer buffer;
+
+    private final int table;
+
+    private ClassDataStore(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.table = buffer.getInt(32);
+    }
+
+    /**
+     * Map a store.
+     *
+     * @param file the store file
+     * @param jar the fat jar being launched
+     * @param checksum the checksum of the fat jar
+     * @return the store or {@code null} if there is none or it was written for another jar
+     * @throws IOException if the file cannot be mapped
+     */
+    static ClassDataStore open(File file, File jar, long checksum) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getLong(8) != jar.length()
+                || buffer.getLong(16) != jar.lastModified() || buffer.getLong(24) != checksum) {
+            return null;
+        }
+        int table = buffer.getInt(32);
+        if (table < HEADER_SIZE || table > buffer.capacity() - 4) {
+            return null;
+        }
+        return new ClassDataStore(buffer);
+    }
+
+    /**
+     * Get the bytes of a class.
+     *
+     * @param className the binary class name
+     * @param jarId the jar the class is being loaded from
+     * @return a read-only view of the class bytes or {@code null} if the store does not
+     * hold the class for that jar
+     */
+    ByteBuffer getClassData(String className, int jarId) {
+        int hash = className.hashCode();
+        int mask = buffer.getInt(table);
+        int slot = BinaryIndex.mix(hash) & mask;
+        while (true) {
+            int slotOffset = table + 4 + slot * 8;
+            int record = buffer.getInt(slotOffset + 4);
+            if (record == 0) {
+                return null;
+            }
+            if (buffer.getInt(slotOffset) == hash && keyEquals(record, className)) {
+                int keyLength = buffer.getShort(record) & 0xFFFF;
+                if ((buffer.getShort(record + 2 + keyLength) & 0xFFFF) != jarId) {
+                    return null;
+                }
+                int data = record + 8 + keyLength;
+                ByteBuffer view = buffer.duplicate();
+                view.position(data);
+                view.limit(data + buffer.getInt(record + 4 + keyLength));
+                return view.slice().asReadOnlyBuffer();
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(int record, String className) {
+        int length = buffer.getShort(record) & 0xFFFF;
+        if (length < className.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(record + 2 + i);
+            if (b < 0) {
+                // not ascii, compare decoded
+                byte[] bytes = new byte[length];
+                for (int j = 0; j < length; j++) {
+                    bytes[j] = buffer.get(record + 2 + j);
+                }
+                return className.equals(new String(bytes, StandardCharsets.UTF_8));
+            }
+            if (i >= className.length() || className.charAt(i) != b) {
+                return false;
+            }
+        }
+        return length == className.length();
+    }
+
+    /**
+     * Writes a store, record by record, to a temporary file that replaces the store in one
+     * step on {@link #commit()}, so JVMs launching concurrently never map it half written.
+     */
+    static final class Writer implements AutoCloseable {
+
+        private final File file;
+
+        private final File temp;
+
+        private final DataOutputStream out;
+
+        private final List<int[]> slots = new ArrayList<>();
+
+        Writer(File file, File jar, long checksum) throws IOException {
+            this.file = file;
+            File directory = file.getAbsoluteFile().getParentFile();
+            Files.createDirectories(directory.toPath());
+            this.temp = File.createTempFile(file.getName(), ".tmp", directory);
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath()), 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(jar.length());
+            out.writeLong(jar.lastModified());
+            out.writeLong(checksum);
+            // table offset, set on commit
+            out.writeInt(0);
+        }
+
+        /**
+         * Add a class.
+         *
+         * @return {@code false} if the store is full and the class was not added
+         */
+        boolean add(String className, int jarId, byte[] bytes) throws IOException {
+            byte[] key = className.getBytes(StandardCharsets.UTF_8);
+            int record = out.size();
+            // DataOutputStream.size() saturates, leave room for the table
+            if (key.length > 0xFFFF || (long) record + 8 + key.length + bytes.length > Integer.MAX_VALUE / 2) {
+                return false;
+            }
+            out.writeShort(key.length);
+            out.write(key);
+            out.writeShort(jarId);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            slots.add(new int[]{className.hashCode(), record});
+            return true;
+        }
+
+        void commit() throws IOException {
+            int table = out.size();
+            int[][] slotTable = new int[Integer.highestOneBit(Math.max(1, slots.size()) * 2 - 1) << 1][];
+            int mask = slotTable.length - 1;
+            for (int[] entry : slots) {
+                int slot = BinaryIndex.mix(entry[0]) & mask;
+                while (slotTable[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                slotTable[slot] = entry;
+            }
+            out.writeInt(mask);
+            for (int[] slot : slotTable) {
+                out.writeInt(slot != null ? slot[0] : 0);
+                out.writeInt(slot != null ? slot[1] : 0);
+            }
+            out.close();
+            try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+                raf.seek(32);
+                raf.writeInt(table);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+}
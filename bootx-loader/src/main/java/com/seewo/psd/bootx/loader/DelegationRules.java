@@ -0,0 +1,147 @@
+package com.seewo.psd.bootx.loader;
+
+import java.util.Arrays;
+
+/**
+ * Decides per class name where {@link JarIndexLaunchedURLClassLoader} looks for a class,
+ * by the longest configured prefix of the name. Prefixes are compiled into a trie, so
+ * routing a name reads each of its characters at most once and allocates nothing.
+ * <p>
+ * By default the loader's own classes are defined from the launcher jar, platform
+ * packages ({@code java.}, {@code javax.}, {@code jdk.}, {@code sun.}, {@code com.sun.}
+ * and the w3c, sax, jgss and omg APIs) go parent-first and everything else is looked up
+ * in the index first. More prefixes can be given, comma separated, with
+ * {@link #PARENT_FIRST_PROPERTY} and {@link #CHILD_FIRST_PROPERTY}; a child-first
+ * {@code javax.servlet.} for instance takes servlet classes from the index again.
+ */
+final class DelegationRules {
+
+    /**
+     * Additional prefixes of classes to load parent-first, without consulting the index.
+     */
+    static final String PARENT_FIRST_PROPERTY = "bootx.delegation.parent-first";
+
+    /**
+     * Additional prefixes of classes to look up in the index first.
+     */
+    static final String CHILD_FIRST_PROPERTY = "bootx.delegation.child-first";
+
+    private static final String[] LAUNCHER_PREFIXES = { "org.springframework.boot.loader.",
+            "com.seewo.psd.bootx.loader." };
+
+    private static final String[] PARENT_FIRST_PREFIXES = { "java.", "javax.", "jdk.", "sun.", "com.sun.",
+            "org.w3c.dom.", "org.xml.sax.", "org.ietf.jgss.", "org.omg." };
+
+    enum Route {
+
+        /**
+         * Define the class from the launcher jar, as the loader's own classes must be.
+         */
+        LAUNCHER,
+
+        /**
+         * Leave the class to the parent and {@link java.net.URLClassLoader}.
+         */
+        PARENT,
+
+        /**
+         * Look the class up in the index first.
+         */
+        INDEX
+
+    }
+
+    private final Node root = new Node();
+
+    private DelegationRules() {
+    }
+
+    /**
+     * Create the default rules plus those configured with system properties.
+     *
+     * @return the rules
+     */
+    static DelegationRules fromSystemProperties() {
+        DelegationRules rules = new DelegationRules();
+        rules.addAll(PARENT_FIRST_PREFIXES, Route.PARENT);
+        rules.addAll(split(System.getProperty(PARENT_FIRST_PROPERTY)), Route.PARENT);
+        rules.addAll(split(System.getProperty(CHILD_FIRST_PROPERTY)), Route.INDEX);
+        // last, the loader's own classes cannot be overridden
+        rules.addAll(LAUNCHER_PREFIXES, Route.LAUNCHER);
+        return rules;
+    }
+
+    private static String[] split(String prefixes) {
+        return (prefixes != null) ? prefixes.split(",") : new String[0];
+    }
+
+    private void addAll(String[] prefixes, Route route) {
+        for (String prefix : prefixes) {
+            prefix = prefix.trim();
+            if (!prefix.isEmpty()) {
+                add(prefix, route);
+            }
+        }
+    }
+
+    private void add(String prefix, Route route) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.child(prefix.charAt(i), true);
+        }
+        node.route = route;
+    }
+
+    /**
+     * Route a class.
+     *
+     * @param className the binary class name
+     * @return the route of the longest matching prefix, {@link Route#INDEX} if none matches
+     */
+    Route route(String className) {
+        Route route = Route.INDEX;
+        Node node = root;
+        for (int i = 0; i < className.length() && node != null; i++) {
+            node = node.child(className.charAt(i), false);
+            if (node != null && node.route != null) {
+                route = node.route;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * A trie node, children kept in parallel arrays sorted by character.
+     */
+    private static final class Node {
+
+        private char[] chars = new char[0];
+
+        private Node[] children = new Node[0];
+
+        private Route route;
+
+        Node child(char c, boolean create) {
+            int i = Arrays.binarySearch(chars, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            if (!create) {
+                return null;
+            }
+            int insert = -i - 1;
+            char[] newChars = new char[chars.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(chars, 0, newChars, 0, insert);
+            System.arraycopy(children, 0, newChildren, 0, insert);
+            System.arraycopy(chars, insert, newChars, insert + 1, chars.length - insert);
+            System.arraycopy(children, insert, newChildren, insert + 1, children.length - insert);
+            Node child = new Node();
+            newChars[insert] = c;
+            newChildren[insert] = child;
+            chars = newChars;
+            children = newChildren;
+            return child;
+        }
+    }
+}
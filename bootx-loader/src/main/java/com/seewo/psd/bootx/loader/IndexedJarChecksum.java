@@ -0,0 +1,82 @@
+package com.seewo.psd.bootx.loader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Checksum of the fat jar entries a {@link BinaryIndex} describes, which binds an index
+ * to the jar it was built for. It covers the name, compression method, CRC, sizes and
+ * local header offset of every entry in central directory order, except the entries
+ * under {@link BinaryIndex#INDEX_LOCATION} the index is written among. The generator
+ * computes it while writing the jar, the loader from the jar's central directory, and
+ * an index that does not match is not used: its class data offsets would point at other
+ * bytes.
+ */
+public final class IndexedJarChecksum {
+
+    private static final byte[] INDEX_LOCATION = BinaryIndex.INDEX_LOCATION.getBytes(StandardCharsets.US_ASCII);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] scratch = new byte[8];
+
+    /**
+     * Return if an entry is left out of the checksum.
+     *
+     * @param name the entry name
+     * @return if the entry is written by the index generator
+     */
+    public static boolean isExcluded(String name) {
+        return name.startsWith(BinaryIndex.INDEX_LOCATION);
+    }
+
+    static boolean isExcluded(byte[] name) {
+        if (name.length < INDEX_LOCATION.length) {
+            return false;
+        }
+        for (int i = 0; i < INDEX_LOCATION.length; i++) {
+            if (name[i] != INDEX_LOCATION[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add an entry, in central directory order.
+     *
+     * @param name the entry name
+     * @param method the compression method
+     * @param crc the CRC-32 of the entry data
+     * @param compressedSize the size of the entry data
+     * @param size the size of the entry once inflated
+     * @param localHeaderOffset the offset of the entry's local header from the start of
+     * the zip data, after any launch script
+     */
+    public void addEntry(String name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+        addEntry(name.getBytes(StandardCharsets.UTF_8), method, crc, compressedSize, size, localHeaderOffset);
+    }
+
+    void addEntry(byte[] name, int method, long crc, long compressedSize, long size, long localHeaderOffset) {
+        if (isExcluded(name)) {
+            return;
+        }
+        this.crc.update(name);
+        update(method);
+        update(crc);
+        update(compressedSize);
+        update(size);
+        update(localHeaderOffset);
+    }
+
+    private void update(long value) {
+        for (int i = 0; i < 8; i++) {
+            scratch[i] = (byte) (value >>> (56 - i * 8));
+        }
+        crc.update(scratch, 0, 8);
+    }
+
+    public long getValue() {
+        return crc.getValue();
+    }
+}
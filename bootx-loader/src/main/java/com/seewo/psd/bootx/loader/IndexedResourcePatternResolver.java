@@ -0,0 +1,98 @@
+package com.seewo.psd.bootx.loader;
+
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link PathMatchingResourcePatternResolver} that lists the jars of a fat jar from the
+ * directory table of its index rather than by walking every entry of every jar a
+ * {@code classpath*:} pattern matches. Register it before the context is created:
+ * <pre>
+ * application.setResourceLoader(new IndexedResourcePatternResolver(classLoader));
+ * </pre>
+ * A resource loader set this way replaces the context's own, so web applications lose
+ * {@code ServletContext} relative resources.
+ * <p>
+ * The class loader is called reflectively: application code sees its own copy of the
+ * bootx classes, not the one the launcher created the class loader from.
+ * <p>
+ * The index lists files only, and a jar's classes only where no other jar shares their
+ * package. Patterns that can match directory entries, such as {@code **} or {@code *}
+ * as the last path segment, and directories the index cannot list completely fall back
+ * to the entry walk, so the result is always the walk's.
+ */
+public class IndexedResourcePatternResolver extends PathMatchingResourcePatternResolver {
+
+    private volatile Method listIndexedEntries;
+
+    public IndexedResourcePatternResolver(ClassLoader classLoader) {
+        super(classLoader);
+    }
+
+    public IndexedResourcePatternResolver(ResourceLoader resourceLoader) {
+        super(resourceLoader);
+    }
+
+    /**
+     * Match the entries below the root directory the index holds for it.
+     */
+    @Override
+    protected Set<Resource> doFindPathMatchingJarResources(Resource rootDirResource, URL rootDirURL, String subPattern)
+            throws IOException {
+        List<String> entries = canMatchDirectories(subPattern) ? null : listIndexedEntries(rootDirURL);
+        if (entries == null) {
+            return super.doFindPathMatchingJarResources(rootDirResource, rootDirURL, subPattern);
+        }
+        Set<Resource> result = new LinkedHashSet<>(8);
+        for (String relativePath : entries) {
+            if (getPathMatcher().match(subPattern, relativePath)) {
+                result.add(rootDirResource.createRelative(relativePath));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return if a pattern may match a directory entry, which ends with a slash. An ant path
+     * pattern only does when it ends with a slash, or its last segment is {@code *} or
+     * {@code **}.
+     */
+    private static boolean canMatchDirectories(String subPattern) {
+        if (subPattern.endsWith("/")) {
+            return true;
+        }
+        String lastSegment = subPattern.substring(subPattern.lastIndexOf('/') + 1);
+        return lastSegment.equals("*") || lastSegment.equals("**");
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> listIndexedEntries(URL rootDirURL) {
+        Method method = this.listIndexedEntries;
+        if (method == null) {
+            ClassLoader classLoader = getClassLoader();
+            if (classLoader == null) {
+                return null;
+            }
+            try {
+                method = classLoader.getClass().getMethod("listIndexedEntries", URL.class);
+            } catch (NoSuchMethodException ex) {
+                return null;
+            }
+            this.listIndexedEntries = method;
+        }
+        try {
+            return (List<String>) method.invoke(getClassLoader(), rootDirURL);
+        } catch (IllegalAccessException | InvocationTargetException ex) {
+            return null;
+        }
+    }
+}
@@ -1,64 +1,211 @@
 package com.seewo.psd.bootx.loader;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.JarURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.security.CodeSigner;
 import java.security.CodeSource;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Enumeration;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
+/**
+ * Loads classes and resources of one classpath root. Safe for concurrent use: when the
+ * root is backed by a {@link MappedJarFile} class bytes are read from the mapping without
+ * any locking, otherwise reads go through the root's {@link JarFile}.
+ * <p>
+ * Nothing is opened up front. The root's {@link JarFile}, and with it its central
+ * directory, is only opened when an entry cannot be served from the mapping, and the
+ * mapping's own entry table is built on the first lookup. {@link #open()} does both
+ * eagerly.
+ */
 final class JarFileResourceLoader implements AutoCloseable {
-    private final JarFile jarFile;
+    private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+
     private final URL rootUrl;
+    private volatile JarFile jarFile;
+    private IOException openFailure;
+
+    private final MappedJarFile mappedJarFile;
+    private final String entryPrefix;
 
-    private final Map<CodeSigners, CodeSource> codeSources = new HashMap<>();
+    private final Map<CodeSigners, CodeSource> codeSources = new ConcurrentHashMap<>();
+
+    private volatile Optional<Manifest> manifest;
 
     JarFileResourceLoader(final URL url) {
-        JarFile jarFile = getJarFileFromUrl(url);
-        if (jarFile == null) throw new RuntimeException("jar file is null for url: " + url);
-        this.jarFile = jarFile;
+        this(url, null, "");
+    }
+
+    /**
+     * Create a loader.
+     *
+     * @param url the root URL
+     * @param mappedJarFile the mapped jar holding the root's entries or {@code null}
+     * @param entryPrefix the prefix of the root's entries in the mapped jar, e.g.
+     * {@code BOOT-INF/classes/}, or an empty string
+     */
+    JarFileResourceLoader(final URL url, final MappedJarFile mappedJarFile, final String entryPrefix) {
         this.rootUrl = url;
+        this.mappedJarFile = mappedJarFile;
+        this.entryPrefix = entryPrefix;
     }
 
+    /**
+     * Open the root's {@link JarFile} and build the mapping's entry table now rather than
+     * on first use.
+     */
+    void open() {
+        mapped();
+        try {
+            getJarFile();
+        } catch (IOException e) {
+            // reported again on first use
+        }
+    }
+
+    /**
+     * Get the mapping to read entries from.
+     *
+     * @return the mapped jar or {@code null} if there is none or the jar is signed, as
+     * signed entries need the code signers only {@link JarFile} verifies
+     */
+    private MappedJarFile mapped() {
+        final MappedJarFile mappedJarFile = this.mappedJarFile;
+        return (mappedJarFile != null && !mappedJarFile.isSigned()) ? mappedJarFile : null;
+    }
+
+    private JarFile getJarFile() throws IOException {
+        JarFile jarFile = this.jarFile;
+        if (jarFile == null) {
+            synchronized (this) {
+                jarFile = this.jarFile;
+                if (jarFile == null) {
+                    if (openFailure != null) {
+                        throw openFailure;
+                    }
+                    try {
+                        jarFile = ((JarURLConnection) rootUrl.openConnection()).getJarFile();
+                    } catch (IOException | ClassCastException e) {
+                        openFailure = (e instanceof IOException) ? (IOException) e
+                                : new IOException("Not a jar: " + rootUrl, e);
+                        throw openFailure;
+                    }
+                    this.jarFile = jarFile;
+                }
+            }
+        }
+        return jarFile;
+    }
+
+    /**
+     * List the entries of this root.
+     *
+     * @param consumer called with the name of each entry, relative to the root
+     * @throws IOException if the root cannot be opened
+     */
+    void forEachEntryName(final Consumer<String> consumer) throws IOException {
+        final Enumeration<JarEntry> entries = getJarFile().entries();
+        while (entries.hasMoreElements()) {
+            consumer.accept(entries.nextElement().getName());
+        }
+    }
+
+    /**
+     * Get the URL of a resource of this root. The entry is looked up directly, a URL is
+     * only created once it is known to exist.
+     *
+     * @param fileName the resource name
+     * @return the URL or {@code null} if this root has no such resource
+     */
     public URL getResource(final String fileName) {
-        URL url;
+        if (!hasEntry(fileName)) {
+            return null;
+        }
         try {
-            url = new URL(rootUrl, fileName);
-            url.openConnection().connect();
-            return url;
-        } catch (Exception e) {
+            return new URL(rootUrl, fileName);
+        } catch (MalformedURLException e) {
+            return null;
         }
-        return null;
     }
-    public synchronized ClassSpec getClassSpec(final String fileName) throws IOException {
+
+    /**
+     * Open a resource of this root without going through its URL. Stored entries are
+     * streamed from the mapping, others from the root's {@link JarFile}.
+     *
+     * @param fileName the resource name
+     * @return the resource data or {@code null} if this root has no such resource
+     * @throws IOException if the resource cannot be read
+     */
+    InputStream getResourceAsStream(final String fileName) throws IOException {
+        final MappedJarFile mappedJarFile = mapped();
+        if (mappedJarFile != null) {
+            final int mappedEntry = mappedJarFile.findEntry(entryPrefix.isEmpty() ? fileName : entryPrefix.concat(fileName));
+            final ByteBuffer buffer = (mappedEntry >= 0) ? mappedJarFile.getStoredEntry(mappedEntry) : null;
+            if (buffer != null) {
+                return new ByteBufferInputStream(buffer);
+            }
+        }
+        final JarEntry entry = getJarEntry(fileName);
+        return (entry != null) ? getJarFile().getInputStream(entry) : null;
+    }
+
+    boolean hasEntry(final String fileName) {
+        final MappedJarFile mappedJarFile = mapped();
+        if (mappedJarFile != null
+                && mappedJarFile.findEntry(entryPrefix.isEmpty() ? fileName : entryPrefix.concat(fileName)) >= 0) {
+            return true;
+        }
+        // JarFile also resolves a directory given without its trailing slash
+        return getJarEntry(fileName) != null;
+    }
+
+    public ClassSpec getClassSpec(final String fileName) throws IOException {
         final ClassSpec spec = new ClassSpec();
+        final MappedJarFile mappedJarFile = mapped();
+        if (mappedJarFile != null) {
+            final int mappedEntry = mappedJarFile.findEntry(entryPrefix.isEmpty() ? fileName : entryPrefix.concat(fileName));
+            if (mappedEntry < 0) {
+                // no such entry
+                return null;
+            }
+            // stored classes are defined straight from the mapping
+            final ByteBuffer buffer = mappedJarFile.getStoredEntry(mappedEntry);
+            final byte[] bytes = (buffer == null) ? mappedJarFile.readEntry(mappedEntry) : null;
+            if (buffer != null || bytes != null) {
+                if (buffer != null) {
+                    spec.setByteBuffer(buffer);
+                } else {
+                    spec.setBytes(bytes);
+                }
+                spec.setCodeSource(getCodeSource(EMPTY_CODE_SIGNERS, null));
+                return spec;
+            }
+        }
         final JarEntry entry = getJarEntry(fileName);
         if (entry == null) {
             // no such entry
             return null;
         }
         final long size = entry.getSize();
-        try (final InputStream is = jarFile.getInputStream(entry)) {
+        try (final InputStream is = getJarFile().getInputStream(entry)) {
             if (size == -1) {
                 // size unknown
-                final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                final byte[] buf = new byte[16384];
-                int res;
-                while ((res = is.read(buf)) > 0) {
-                    baos.write(buf, 0, res);
-                }
+                final byte[] bytes = BufferPool.readFully(is);
                 // done
                 CodeSource codeSource = createCodeSource(entry);
-                baos.close();
                 is.close();
-                spec.setBytes(baos.toByteArray());
+                spec.setBytes(bytes);
                 spec.setCodeSource(codeSource);
                 return spec;
             } else if (size <= (long) Integer.MAX_VALUE) {
@@ -84,31 +231,92 @@ final class JarFileResourceLoader implements AutoCloseable {
         }
     }
 
+    /**
+     * Get the code source of the unsigned entries of this root.
+     */
+    CodeSource getUnsignedCodeSource() {
+        return getCodeSource(EMPTY_CODE_SIGNERS, null);
+    }
+
+    URL getRootUrl() {
+        return rootUrl;
+    }
+
+    /**
+     * Get the manifest of this root, read once and then cached.
+     *
+     * @return the manifest or {@code null} if the root has none
+     */
+    Manifest getManifest() {
+        Optional<Manifest> manifest = this.manifest;
+        if (manifest == null) {
+            try {
+                manifest = Optional.ofNullable(readManifest());
+            } catch (IOException e) {
+                manifest = Optional.empty();
+            }
+            this.manifest = manifest;
+        }
+        return manifest.orElse(null);
+    }
+
     private CodeSource createCodeSource(final JarEntry entry) {
         final CodeSigner[] entryCodeSigners = entry.getCodeSigners();
         final CodeSigners codeSigners = entryCodeSigners == null || entryCodeSigners.length == 0 ? EMPTY_CODE_SIGNERS : new CodeSigners(entryCodeSigners);
+        return getCodeSource(codeSigners, entryCodeSigners);
+    }
+
+    private CodeSource getCodeSource(final CodeSigners codeSigners, final CodeSigner[] entryCodeSigners) {
         CodeSource codeSource = codeSources.get(codeSigners);
         if (codeSource == null) {
-            codeSources.put(codeSigners, codeSource = new CodeSource(rootUrl, entryCodeSigners));
+            codeSource = codeSources.computeIfAbsent(codeSigners, (key) -> new CodeSource(rootUrl, entryCodeSigners));
         }
         return codeSource;
     }
 
-    private JarEntry getJarEntry(final String fileName) {
-        return jarFile.getJarEntry(fileName);
+    /**
+     * Read the manifest of a nested jar from the mapping, so that defining a package does
+     * not open the jar. A directory root shares the manifest {@link JarFile} gives it.
+     */
+    private Manifest readManifest() throws IOException {
+        final MappedJarFile mappedJarFile = mapped();
+        if (mappedJarFile != null && entryPrefix.isEmpty()) {
+            final int entry = mappedJarFile.findEntry(MANIFEST_NAME);
+            if (entry < 0) {
+                return null;
+            }
+            final ByteBuffer buffer = mappedJarFile.getStoredEntry(entry);
+            final byte[] bytes = (buffer == null) ? mappedJarFile.readEntry(entry) : null;
+            if (buffer != null) {
+                return new Manifest(new ByteBufferInputStream(buffer));
+            }
+            if (bytes != null) {
+                return new Manifest(new ByteArrayInputStream(bytes));
+            }
+        }
+        return getJarFile().getManifest();
     }
 
-    private JarFile getJarFileFromUrl(URL url) {
+    /**
+     * Look an entry up in the root's {@link JarFile}, opening it if necessary.
+     *
+     * @return the entry or {@code null} if there is no such entry or the root cannot be
+     * opened, which as before leaves the root to {@link java.net.URLClassLoader}
+     */
+    private JarEntry getJarEntry(final String fileName) {
         try {
-            URLConnection urlConnection = url.openConnection();
-            return ((JarURLConnection) urlConnection).getJarFile();
+            return getJarFile().getJarEntry(fileName);
         } catch (IOException e) {
+            return null;
         }
-        return null;
     }
 
     @Override
     public void close() {
+        JarFile jarFile = this.jarFile;
+        if (jarFile == null) {
+            return;
+        }
         try {
             jarFile.close();
         } catch (IOException e) {
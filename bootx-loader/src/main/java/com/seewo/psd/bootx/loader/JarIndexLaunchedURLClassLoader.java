@@ -20,21 +20,31 @@ import org.springframework.boot.loader.Launcher;
 import org.springframework.boot.loader.archive.Archive;
 import org.springframework.boot.loader.jar.Handler;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.JarURLConnection;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.net.URLConnection;
-import java.security.AccessController;
-import java.security.PrivilegedExceptionAction;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSigner;
+import java.security.CodeSource;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
-import java.util.jar.JarFile;
 import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
 
 /**
  * {@link ClassLoader} used by the {@link Launcher}.
@@ -46,8 +56,6 @@ import java.util.jar.Manifest;
  */
 public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
 
-    private static final int BUFFER_SIZE = 4096;
-
     static {
         ClassLoader.registerAsParallelCapable();
     }
@@ -61,11 +69,53 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
     private volatile DefinePackageCallType definePackageCallType;
 
 
-    private static Map<String, List<JarFileResourceLoader>> package2LoaderMap = new ConcurrentHashMap<>();
-    private static Map<String, List<JarFileResourceLoader>> res2LoaderMap = new ConcurrentHashMap<>();
+    private MappedJarFile rootJar;
+    private BinaryIndex index;
+    private JarFileResourceLoader[] jarLoaders; // by index jar id
+    private Map<String, Integer> jarIds; // by root URL
+    private List<JarFileResourceLoader> unindexedLoaders = Collections.emptyList(); // in classpath order
+    private final Map<Closeable, Void> resourceStreams = new WeakHashMap<>(); // closed by close()
+    private List<String> warmupClasses = Collections.emptyList();
+    private Queue<String> recordedClasses;
+    private ClassDataStore classDataStore;
+    private volatile Queue<InflatedClass> inflatedClasses;
+    private Runnable classDataStoreWriter;
+    private final LoaderMetrics metrics;
+    private final DelegationRules delegationRules = DelegationRules.fromSystemProperties();
+    private final boolean lockFree = Boolean.getBoolean(LOCK_FREE_PROPERTY);
     private static boolean DEBUG = false;
-    private static File JAR_INDEX_FILE = new File("./INDEX.LIST");
-    private static File RES_INDEX_FILE = new File("./RES_INDEX.LIST");
+
+    /**
+     * Directory holding {@code INDEX.BIN}, overrides the index packaged in the root archive
+     * when set.
+     */
+    public static final String INDEX_LOCATION_PROPERTY = "bootx.index.location";
+
+    /**
+     * Set to {@code true} to open all nested jars in parallel while the loader is created,
+     * rather than each on its first index hit.
+     */
+    public static final String EAGER_OPEN_PROPERTY = "bootx.jars.eager-open";
+
+    /**
+     * Set to {@code true} to load classes without {@link #getClassLoadingLock(String)}. No
+     * lock object is created per class name, and threads loading the same class race to
+     * define it: the JVM accepts the first definition and the others return that class.
+     */
+    public static final String LOCK_FREE_PROPERTY = "bootx.locks.lock-free";
+
+    /**
+     * Directory to keep learned indexes in. A root archive launched without an index gets
+     * one written there, built from its jars, and later launches of the same archive use
+     * it. Indexes are named by the checksum of the archive they were learned from.
+     */
+    public static final String LEARN_INDEX_PROPERTY = "bootx.index.learn";
+
+    /**
+     * Seconds after the class loader is created to write a learned index. By default the
+     * index is written when the JVM exits.
+     */
+    public static final String LEARN_DELAY_PROPERTY = "bootx.index.learn.delay";
 
     static {
     }
@@ -104,6 +154,7 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
         super(urls, parent);
         this.exploded = exploded;
         this.rootArchive = rootArchive;
+        this.metrics = LoaderMetrics.createIfEnabled(this);
         System.out.println(">>>in JarIndexLaunchedURLClassLoader");
         initJarIndex(urls);
     }
@@ -112,57 +163,419 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
     private void initJarIndex(URL[] urls) {
         Map<String, URL> urlMap = extracted(urls);
         Map<URL, JarFileResourceLoader> loaderMap = new HashMap<>();
+        MappedJarFile rootJar = openRootJar();
+        this.rootJar = rootJar;
 
-        for (URL url : urls) {
+        for (Map.Entry<String, URL> entry : urlMap.entrySet()) {
+            // nothing is opened yet, a jar is opened on its first index hit
+            loaderMap.put(entry.getValue(), createResourceLoader(entry.getValue(), rootJar, entry.getKey()));
+        }
+        List<JarFileResourceLoader> unindexedLoaders = new ArrayList<>(urlMap.size());
+        for (URL url : urlMap.values()) {
+            unindexedLoaders.add(loaderMap.get(url));
+        }
+        this.unindexedLoaders = unindexedLoaders;
+        ForkJoinPool openPool = Boolean.getBoolean(EAGER_OPEN_PROPERTY) ? openInParallel(loaderMap.values()) : null;
+
+        BinaryIndex index = readIndex(rootJar);
+        String learnLocation = System.getProperty(LEARN_INDEX_PROPERTY);
+        if (index == null && learnLocation != null && rootJar != null) {
+            File learnedIndex = new File(learnLocation,
+                    Long.toHexString(rootJar.getChecksum()) + "-" + BinaryIndex.INDEX_NAME);
+            index = readLearnedIndex(learnedIndex, rootJar);
+            if (index == null) {
+                startLearning(learnedIndex, rootJar, urlMap, loaderMap);
+            }
+        }
+        if (index == null) {
+            if (openPool != null) openPool.shutdown();
+            return;
+        }
+        this.warmupClasses = readWarmupProfile(rootJar);
+        String recordLocation = System.getProperty(WarmupProfile.RECORD_PROPERTY);
+        if (recordLocation != null) {
+            startRecording(new File(recordLocation));
+        }
+        String storeLocation = System.getProperty(ClassDataStore.STORE_PROPERTY);
+        if (storeLocation != null && rootJar != null) {
+            initClassDataStore(new File(storeLocation), rootJar);
+        }
+
+        JarFileResourceLoader[] jarLoaders = new JarFileResourceLoader[index.getJarCount()];
+        for (int jarId = 0; jarId < jarLoaders.length; jarId++) {
+            URL url = urlMap.get(index.getJarName(jarId));
+            if (url != null) {
+                jarLoaders[jarId] = loaderMap.get(url);
+            }
+        }
+        if (metrics != null) {
+            String[] jarNames = new String[jarLoaders.length];
+            for (int jarId = 0; jarId < jarNames.length; jarId++) {
+                jarNames[jarId] = index.getJarName(jarId);
+            }
+            metrics.setJars(jarNames);
+        }
+        if (openPool != null) {
+            // the index and profile were read while the jars were being opened
+            openPool.shutdown();
+            try {
+                openPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        Map<String, Integer> jarIds = new HashMap<>();
+        for (int jarId = 0; jarId < jarLoaders.length; jarId++) {
+            if (jarLoaders[jarId] != null) {
+                jarIds.put(jarLoaders[jarId].getRootUrl().toString(), jarId);
+            }
+        }
+        // the index answers for its jars, including that they lack a package
+        unindexedLoaders.removeAll(Arrays.asList(jarLoaders));
+        this.jarLoaders = jarLoaders;
+        this.jarIds = jarIds;
+        this.index = index;
+        System.out.println("process jar index done, jars= " + jarLoaders.length);
+    }
+
+    /**
+     * Open every jar on a pool of daemon threads, leaving the calling thread free to read
+     * the index meanwhile.
+     *
+     * @return the pool, to be shut down and awaited once the index is read
+     */
+    private ForkJoinPool openInParallel(Collection<JarFileResourceLoader> loaders) {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (JarFileResourceLoader loader : loaders) {
+            pool.execute(loader::open);
+        }
+        return pool;
+    }
+
+    /**
+     * Record every class defined from the index and write the list when the JVM exits.
+     */
+    private void startRecording(File file) {
+        Queue<String> recordedClasses = new ConcurrentLinkedQueue<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                URLConnection urlConnection = url.openConnection();
-                if (urlConnection instanceof JarURLConnection) {
-                    loaderMap.put(url, new JarFileResourceLoader(url));
+                WarmupProfile.write(file, recordedClasses);
+            } catch (IOException ex) {
+                System.err.println("Failed to write warmup profile " + file + ": " + ex);
+            }
+        }, "bootx-warmup-recorder"));
+        this.recordedClasses = recordedClasses;
+    }
+
+    private BinaryIndex readLearnedIndex(File file, MappedJarFile rootJar) {
+        try {
+            BinaryIndex index = BinaryIndex.map(file);
+            return (index != null && isIndexOf(index, rootJar)) ? index : null;
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Failed to read learned jar index " + file + ": " + ex);
+            return null;
+        }
+    }
+
+    /**
+     * Write an index of the jars this launch runs from, after {@link #LEARN_DELAY_PROPERTY}
+     * or when the JVM exits. The index lists every entry of every jar rather than only those
+     * this launch looked up, as the loader takes an index hit to name all the jars holding
+     * a resource.
+     */
+    private void startLearning(File file, MappedJarFile rootJar, Map<String, URL> urlMap,
+            Map<URL, JarFileResourceLoader> loaderMap) {
+        Map<String, JarFileResourceLoader> roots = new LinkedHashMap<>();
+        for (Map.Entry<String, URL> entry : urlMap.entrySet()) {
+            roots.put(entry.getKey(), loaderMap.get(entry.getValue()));
+        }
+        Runnable learn = () -> {
+            try {
+                writeLearnedIndex(file, rootJar.getIndexedChecksum(), roots);
+                if (metrics != null) System.out.println("learned jar index written to " + file);
+            } catch (IOException ex) {
+                System.err.println("Failed to write learned jar index " + file + ": " + ex);
+            }
+        };
+        Long delay = Long.getLong(LEARN_DELAY_PROPERTY);
+        if (delay == null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(learn, "bootx-index-learner"));
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                TimeUnit.SECONDS.sleep(delay);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            learn.run();
+        }, "bootx-index-learner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Index the entries of the roots the same way the build time index generator does, in
+     * classpath order, and replace the file in one step.
+     */
+    private static void writeLearnedIndex(File file, long jarChecksum, Map<String, JarFileResourceLoader> roots)
+            throws IOException {
+        BinaryIndexWriter writer = new BinaryIndexWriter();
+        writer.setJarChecksum(jarChecksum);
+        for (Map.Entry<String, JarFileResourceLoader> root : roots.entrySet()) {
+            Set<String> packages = new TreeSet<>();
+            List<String> classes = new ArrayList<>();
+            List<String> resources = new ArrayList<>();
+            root.getValue().forEachEntryName((entryName) -> {
+                if (entryName.isEmpty() || entryName.endsWith("/") || entryName.startsWith("META-INF/versions/")) {
+                    return;
                 }
-            } catch (IOException e) {
+                int lastSlash = entryName.lastIndexOf('/');
+                if (!entryName.endsWith(".class")) {
+                    resources.add(entryName);
+                } else if (lastSlash > 0) {
+                    packages.add(entryName.substring(0, lastSlash));
+                    classes.add(entryName);
+                }
+            });
+            if (packages.isEmpty() && resources.isEmpty()) {
+                continue;
             }
+            int jarId = writer.addJar(root.getKey());
+            packages.forEach((packageName) -> writer.addPackage(packageName, jarId));
+            resources.forEach((resource) -> writer.addResource(resource, jarId));
+            classes.forEach((className) -> writer.addClass(className, jarId));
         }
+        File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(temp.toPath()))) {
+                writer.writeTo(outputStream);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
 
-        Map<String, Set<String>> prefixMap = null; // jarname to package
+    /**
+     * Map the class data store written by an earlier launch of the same jar, or record the
+     * classes this launch inflates and write the store once startup has finished, see
+     * {@link #storeInflatedClasses()}, or when the JVM exits if it never does.
+     */
+    private void initClassDataStore(File file, MappedJarFile rootJar) {
+        long checksum = rootJar.getChecksum();
         try {
-            prefixMap = IndexParser.indexListParser(JAR_INDEX_FILE);
-        } catch (IOException e) {
-        }
-        if (prefixMap == null) return;
-
-        prefixMap.forEach((jarName, packageNameSet) -> {
-            URL url = urlMap.get(jarName);
-            if (url == null) return;
-            for (String pkgName : packageNameSet) {
-                package2LoaderMap.putIfAbsent(pkgName, new ArrayList<>());
-                if (loaderMap.get(url) != null) {
-                    package2LoaderMap.get(pkgName).add(loaderMap.get(url));
+            ClassDataStore store = ClassDataStore.open(file, rootJar.getFile(), checksum);
+            if (store != null) {
+                this.classDataStore = store;
+                return;
+            }
+        } catch (IOException ex) {
+            System.err.println("Failed to read class data store " + file + ": " + ex);
+        }
+        Queue<InflatedClass> inflatedClasses = new ConcurrentLinkedQueue<>();
+        AtomicBoolean written = new AtomicBoolean();
+        Runnable classDataStoreWriter = () -> {
+            if (!written.compareAndSet(false, true)) {
+                return;
+            }
+            // classes defined from now on are not recorded
+            this.inflatedClasses = null;
+            try {
+                writeClassDataStore(file, rootJar, checksum, inflatedClasses);
+            } catch (IOException ex) {
+                System.err.println("Failed to write class data store " + file + ": " + ex);
+            }
+            inflatedClasses.clear();
+        };
+        Runtime.getRuntime().addShutdownHook(new Thread(classDataStoreWriter, "bootx-class-store-writer"));
+        this.inflatedClasses = inflatedClasses;
+        this.classDataStoreWriter = classDataStoreWriter;
+    }
+
+    /**
+     * Write the class data store of the classes inflated so far, if this launch records
+     * one. Called once the application's {@code main} has returned, so that the store
+     * holds the startup classes and their bytes are not kept for the rest of the run.
+     */
+    void storeInflatedClasses() {
+        Runnable classDataStoreWriter = this.classDataStoreWriter;
+        if (classDataStoreWriter != null) {
+            classDataStoreWriter.run();
+        }
+    }
+
+    /**
+     * Write the store in the order the classes were defined, so that the next launch reads
+     * it front to back.
+     */
+    private static void writeClassDataStore(File file, MappedJarFile rootJar, long checksum,
+            Queue<InflatedClass> inflatedClasses) throws IOException {
+        try (ClassDataStore.Writer writer = new ClassDataStore.Writer(file, rootJar.getFile(), checksum)) {
+            for (InflatedClass inflatedClass : inflatedClasses) {
+                if (!writer.add(inflatedClass.name, inflatedClass.jarId, inflatedClass.bytes)) {
+                    break;
                 }
             }
-        });
+            writer.commit();
+        }
+    }
 
-        Map<String, Set<String>> jar2ResMap = null; // jar to resource
+    /**
+     * Get the loading metrics.
+     *
+     * @return the metrics or {@code null} unless enabled with {@link LoaderMetrics#ENABLED_PROPERTY}
+     */
+    public LoaderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Get a checksum identifying the content of the root archive.
+     *
+     * @return the checksum or {@code -1} if the root archive is not a mappable jar
+     */
+    long getRootChecksum() {
+        MappedJarFile rootJar = this.rootJar;
+        return (rootJar != null) ? rootJar.getChecksum() : -1L;
+    }
+
+    /**
+     * Get the classes to preload, in the order the profiled startup defined them.
+     *
+     * @return the class names, empty if the root archive has no warmup profile
+     */
+    List<String> getWarmupClasses() {
+        return warmupClasses;
+    }
+
+    /**
+     * Map the root archive when it is a jar, so that its entries and those of its stored
+     * nested jars can be read without locking.
+     *
+     * @return the mapped root jar or {@code null}
+     */
+    private MappedJarFile openRootJar() {
+        if (this.rootArchive == null || this.rootArchive.isExploded()) {
+            return null;
+        }
+        try {
+            return MappedJarFile.open(new File(this.rootArchive.getUrl().toURI()));
+        } catch (IOException | URISyntaxException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private JarFileResourceLoader createResourceLoader(URL url, MappedJarFile rootJar, String jarName) {
+        if (rootJar == null || !jarName.startsWith("/")) {
+            return new JarFileResourceLoader(url);
+        }
+        String entryName = jarName.substring(1);
+        if (entryName.endsWith(".jar")) {
+            MappedJarFile nestedJar = rootJar.getNestedJar(entryName);
+            return new JarFileResourceLoader(url, nestedJar, "");
+        }
+        return new JarFileResourceLoader(url, rootJar, entryName + "/");
+    }
+
+    /**
+     * Map the index from the directory named by {@link #INDEX_LOCATION_PROPERTY} or, by
+     * default, from {@code META-INF/bootx/} in the root archive.
+     *
+     * @param rootJar the mapped root jar or {@code null}
+     * @return the index or {@code null} if there is none
+     */
+    private BinaryIndex readIndex(MappedJarFile rootJar) {
+        String location = System.getProperty(INDEX_LOCATION_PROPERTY);
+        String entryName = BinaryIndex.INDEX_LOCATION + BinaryIndex.INDEX_NAME;
         try {
-            jar2ResMap = IndexParser.indexListParser(RES_INDEX_FILE);
-        } catch (IOException e) {
-        }
-        if (jar2ResMap == null) return;
-
-        jar2ResMap.forEach((jarName, resNameSet) -> {
-            URL url = urlMap.get(jarName);
-            if (url == null) return;
-            for (String resName : resNameSet) {
-                res2LoaderMap.putIfAbsent(resName, new ArrayList<>());
-                if (loaderMap.get(url) != null) {
-                    res2LoaderMap.get(resName).add(loaderMap.get(url));
+            if (location != null) {
+                File file = new File(location, BinaryIndex.INDEX_NAME);
+                BinaryIndex index = BinaryIndex.map(file);
+                if (index == null || isIndexOf(index, rootJar)) {
+                    return index;
                 }
+                System.err.println("Ignoring jar index " + file + ", it was built for another jar");
+            }
+            if (this.rootArchive == null) {
+                return null;
             }
-        });
-        System.out.println("process jar index done, size= " + package2LoaderMap.size() + "\t" + res2LoaderMap.size());
+            URL rootUrl = this.rootArchive.getUrl();
+            if (this.rootArchive.isExploded()) {
+                return BinaryIndex.map(new File(new File(rootUrl.toURI()), entryName));
+            }
+            BinaryIndex index = BinaryIndex.of(readRootEntry(rootJar, entryName));
+            // a jar changed after it was indexed
+            return (index != null && isIndexOf(index, rootJar)) ? index : null;
+        } catch (IOException | URISyntaxException | IllegalArgumentException ex) {
+            // no index, every lookup takes the URLClassLoader path
+            return null;
+        }
+    }
+
+    /**
+     * Return if an index was built for the root jar, so that its class data offsets point
+     * into it. An exploded root has no offsets to check.
+     */
+    private static boolean isIndexOf(BinaryIndex index, MappedJarFile rootJar) {
+        return rootJar == null || index.getJarChecksum() == rootJar.getIndexedChecksum();
+    }
+
+    /**
+     * Read the warmup profile packaged in the root archive.
+     *
+     * @param rootJar the mapped root jar or {@code null}
+     * @return the profiled class names, empty if there is no profile
+     */
+    private List<String> readWarmupProfile(MappedJarFile rootJar) {
+        if (this.rootArchive == null) {
+            return Collections.emptyList();
+        }
+        String entryName = BinaryIndex.INDEX_LOCATION + WarmupProfile.WARMUP_NAME;
+        try {
+            if (this.rootArchive.isExploded()) {
+                File file = new File(new File(this.rootArchive.getUrl().toURI()), entryName);
+                return file.isFile() ? WarmupProfile.read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())))
+                        : Collections.emptyList();
+            }
+            return WarmupProfile.read(readRootEntry(rootJar, entryName));
+        } catch (IOException | URISyntaxException | IllegalArgumentException ex) {
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Read an entry of a non-exploded root archive, in place when it is stored.
+     *
+     * @return the entry data or {@code null} if there is no such entry
+     */
+    private ByteBuffer readRootEntry(MappedJarFile rootJar, String entryName) throws IOException {
+        if (rootJar != null) {
+            int entry = rootJar.findEntry(entryName);
+            if (entry < 0) {
+                return null;
+            }
+            ByteBuffer buffer = rootJar.getStoredEntry(entry);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        // compressed or not mappable, read it onto the heap instead
+        return readEntry(new URL("jar:" + this.rootArchive.getUrl() + "!/" + entryName));
+    }
+
+    private ByteBuffer readEntry(URL url) throws IOException {
+        try (InputStream inputStream = url.openStream()) {
+            return ByteBuffer.wrap(BufferPool.readFully(inputStream));
+        }
     }
 
     private Map<String, URL> extracted(URL[] urls) {
-        Map<String, URL> urlMap = new HashMap<>();
+        // classpath order, a learned index keeps the first jar holding a class
+        Map<String, URL> urlMap = new LinkedHashMap<>();
         for (URL url : urls) {
             String urlStr = url.toString();
             int idx = urlStr.indexOf(".jar!");
@@ -179,14 +592,19 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
 
     @Override
     public URL findResource(String name) {
-        List<JarFileResourceLoader> loaders = res2LoaderMap.get(name);
-        if (loaders != null && !loaders.isEmpty()) {
-            for (JarFileResourceLoader loader : loaders) {
+        BinaryIndex index = this.index;
+        int record = (index != null) ? findResourceRecord(index, name) : -1;
+        if (record >= 0) {
+            for (int i = 0, count = index.getRecordJarCount(record); i < count; i++) {
+                JarFileResourceLoader loader = jarLoaders[index.getRecordJarId(record, i)];
+                if (loader == null) continue;
                 URL ret = loader.getResource(name);
                 if (ret == null) continue;
+                if (metrics != null) metrics.resourceIndexHit();
                 return ret;
             }
         }
+        if (metrics != null) metrics.resourceFallback();
 
         if (this.exploded) {
             return super.findResource(name);
@@ -199,12 +617,97 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Open a resource without creating a URL for it when the index knows the jar holding
+     * it. Resources of the parent still take precedence, and resources the index does not
+     * know are opened through {@link #findResource(String)}. As with {@link URLClassLoader},
+     * the streams this loader opens are closed by {@link #close()}.
+     */
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        ClassLoader parent = getParent();
+        if (parent == null) {
+            return super.getResourceAsStream(name);
+        }
+        InputStream parentStream = parent.getResourceAsStream(name);
+        if (parentStream != null) {
+            return parentStream;
+        }
+        BinaryIndex index = this.index;
+        int record = (index != null) ? index.findResource(name) : -1;
+        try {
+            for (int i = 0, count = (record >= 0) ? index.getRecordJarCount(record) : 0; i < count; i++) {
+                JarFileResourceLoader loader = jarLoaders[index.getRecordJarId(record, i)];
+                InputStream stream = (loader != null) ? loader.getResourceAsStream(name) : null;
+                if (stream != null) {
+                    if (metrics != null) metrics.resourceIndexHit();
+                    return trackResourceStream(stream);
+                }
+            }
+            URL url = findResource(name);
+            return (url != null) ? trackResourceStream(url.openStream()) : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private InputStream trackResourceStream(InputStream stream) {
+        // a stream over the mapped fat jar holds no file handle
+        if (!(stream instanceof ByteBufferInputStream)) {
+            synchronized (resourceStreams) {
+                resourceStreams.put(stream, null);
+            }
+        }
+        return stream;
+    }
+
+    /**
+     * Close the loader and the resource streams {@link #getResourceAsStream} opened that
+     * are still reachable, as {@link URLClassLoader#close()} does for its own.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        try {
+            super.close();
+        } catch (IOException ex) {
+            failure = ex;
+        }
+        List<Closeable> streams;
+        synchronized (resourceStreams) {
+            streams = new ArrayList<>(resourceStreams.keySet());
+            resourceStreams.clear();
+        }
+        for (Closeable stream : streams) {
+            try {
+                stream.close();
+            } catch (IOException ex) {
+                if (failure == null) {
+                    failure = ex;
+                } else {
+                    failure.addSuppressed(ex);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
     @Override
     public Enumeration<URL> findResources(String name) throws IOException {
-        List<JarFileResourceLoader> loaders = res2LoaderMap.get(name);
-        if (loaders != null && !loaders.isEmpty()) {
+        URL aggregated = findAggregatedResource(name);
+        if (aggregated != null) {
+            if (metrics != null) metrics.resourceIndexHit();
+            return Collections.enumeration(Collections.singletonList(aggregated));
+        }
+        BinaryIndex index = this.index;
+        int record = (index != null) ? findResourceRecord(index, name) : -1;
+        if (record >= 0) {
             List<URL> targetUrl = new ArrayList<>();
-            for (JarFileResourceLoader loader : loaders) {
+            for (int i = 0, count = index.getRecordJarCount(record); i < count; i++) {
+                JarFileResourceLoader loader = jarLoaders[index.getRecordJarId(record, i)];
+                if (loader == null) continue;
                 try {
                     URL ret = loader.getResource(name);
                     if (ret == null) continue;
@@ -213,9 +716,11 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
                 }
             }
             if (!targetUrl.isEmpty()) {
+                if (metrics != null) metrics.resourceIndexHit();
                 return Collections.enumeration(targetUrl);
             }
         }
+        if (metrics != null) metrics.resourceFallback();
 
         if (this.exploded) {
             return super.findResources(name);
@@ -228,79 +733,330 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * Find the jars that may hold a resource. A directory, as passed by
+     * {@code classpath*:} pattern scanning, is looked up in the directory table, which only
+     * holds directories with entries below them; the jars are still asked for the entry.
+     */
+    private static int findResourceRecord(BinaryIndex index, String name) {
+        return name.endsWith("/") ? index.findDirectory(name) : index.findResource(name);
+    }
+
+    /**
+     * List the entries below a directory of one root from the index, rather than by
+     * walking the root's entries.
+     *
+     * @param rootDirUrl the directory URL as returned by {@link #findResources(String)},
+     * e.g. {@code jar:file:/app.jar!/BOOT-INF/lib/foo.jar!/com/acme/}
+     * @return the entry names relative to the directory at any depth, classes and
+     * resources but not directories, or {@code null} if the index cannot list the
+     * directory completely, see {@link BinaryIndex#forEachEntry}
+     */
+    public List<String> listIndexedEntries(URL rootDirUrl) {
+        BinaryIndex index = this.index;
+        if (index == null || !index.hasClassTable()) {
+            return null;
+        }
+        String url = rootDirUrl.toString();
+        int separator = url.lastIndexOf("!/");
+        Integer jarId = (separator > 0) ? jarIds.get(url.substring(0, separator + 2)) : null;
+        String directory = (jarId != null) ? url.substring(separator + 2) : "";
+        int record = directory.isEmpty() ? -1 : index.findDirectory(directory);
+        if (record < 0) {
+            return null;
+        }
+        int prefixLength = directory.endsWith("/") ? directory.length() : directory.length() + 1;
+        List<String> entries = new ArrayList<>();
+        if (!index.forEachEntry(record, jarId, (entry) -> entries.add(entry.substring(prefixLength)))) {
+            return null;
+        }
+        return entries;
+    }
+
+    /**
+     * Find the merged copy of a resource that several jars contribute to.
+     *
+     * @param name the resource name
+     * @return the URL of the merged entry in the root archive or {@code null} if the
+     * resource is not merged
+     */
+    private URL findAggregatedResource(String name) {
+        MappedJarFile rootJar = this.rootJar;
+        if (rootJar == null || this.index == null || !AggregatedResources.isAggregatable(name)) {
+            return null;
+        }
+        String entryName = AggregatedResources.LOCATION + name;
+        if (rootJar.findEntry(entryName) < 0) {
+            return null;
+        }
+        try {
+            return new URL("jar:" + this.rootArchive.getUrl() + "!/" + entryName);
+        } catch (MalformedURLException ex) {
+            return null;
+        }
+    }
+
     @Override
     protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
         // load loader classes directly
         Handler.setUseFastConnectionExceptions(true);
         try {
+            if (lockFree) {
+                return loadClassUnlocked(name, resolve);
+            }
             synchronized (getClassLoadingLock(name)) {
+                return loadClassUnlocked(name, resolve);
+            }
+        } finally {
+            Handler.setUseFastConnectionExceptions(false);
+        }
+    }
 
-                Class<?> loadedClass = findLoadedClass(name);
-                if (loadedClass != null) return loadedClass;
-                if (name.startsWith("org.springframework.boot.loader.") || name.startsWith("com.seewo.psd.bootx.loader.")) {
-                    try {
-                        Class<?> result = loadClassInLaunchedClassLoader(name);
-                        if (resolve) {
-                            resolveClass(result);
-                        }
-                        return result;
-                    } catch (ClassNotFoundException ex) {
-                    }
+    private Class<?> loadClassUnlocked(String name, boolean resolve) throws ClassNotFoundException {
+        Class<?> loadedClass = findLoadedClass(name);
+        if (loadedClass != null) return loadedClass;
+        DelegationRules.Route route = delegationRules.route(name);
+        if (route == DelegationRules.Route.LAUNCHER) {
+            try {
+                Class<?> result = loadClassInLaunchedClassLoader(name);
+                if (resolve) {
+                    resolveClass(result);
                 }
+                return result;
+            } catch (ClassNotFoundException ex) {
+            }
+        }
 
-                // skip java.*, org.w3c.dom.* com.sun.*
-                if (!name.startsWith("java") && !name.contains("org.w3c.dom.") && !name.contains("xml") && !name.startsWith("com.sun")) {
-
-                    if (DEBUG) System.out.println(">>>>>loading " + name);
-                    int lastDot = name.lastIndexOf('.');
-                    if (lastDot >= 0) {
-                        String packageName = name.substring(0, lastDot);
-                        String packageEntryName = packageName.replace('.', '/');
-                        String path = name.replace('.', '/').concat(".class");
-
-
-                        List<JarFileResourceLoader> loaders = package2LoaderMap.get(packageEntryName);
-                        if (loaders != null) {
-                            for (JarFileResourceLoader loader : loaders) {
-                                ClassSpec classSpec = null;
-                                try {
-                                    classSpec = loader.getClassSpec(path);
-                                } catch (IOException e) {
-                                    throw new RuntimeException(e);
-                                }
-
-                                if (classSpec == null) {
-//                                    System.out.println(">>>>> resource is null: " + packageName + "\t" + path);
-                                    continue;
-                                }
-                                Class<?> definedClass = defineClass(name, classSpec.getBytes(), 0, classSpec.getBytes().length, classSpec.getCodeSource());
-//                                System.out.println(">>>>> define class done: " + "\t" + packageName + "\t" + path + "\t" + definedClass);
-                                definePackageIfNecessary(name);
-                                return definedClass;
-                            }
-                        }
-                    }
-                }
+        if (route != DelegationRules.Route.PARENT) {
+            if (DEBUG) System.out.println(">>>>>loading " + name);
+            Class<?> definedClass = loadIndexedClass(name);
+            if (definedClass != null) {
+                return definedClass;
+            }
+            if (metrics != null) metrics.indexMiss();
+        }
 
-                if (this.exploded) {
-                    return super.loadClass(name, resolve);
-                }
-                try {
-                    definePackageIfNecessary(name);
-                } catch (IllegalArgumentException ex) {
-                    // Tolerate race condition due to being parallel capable
-                    if (getPackage(name) == null) {
-                        // This should never happen as the IllegalArgumentException indicates
-                        // that the package has already been defined and, therefore,
-                        // getPackage(name) should not return null.
-                        throw new AssertionError("Package " + name + " has already been defined but it could not be found");
-                    }
+        if (metrics == null) {
+            return loadClassFromClasspath(name, resolve);
+        }
+        long start = System.nanoTime();
+        try {
+            return loadClassFromClasspath(name, resolve);
+        } finally {
+            metrics.classFallback(System.nanoTime() - start);
+        }
+    }
+
+    private Class<?> loadClassFromClasspath(String name, boolean resolve) throws ClassNotFoundException {
+        if (this.exploded) {
+            return delegateLoadClass(name, resolve);
+        }
+        try {
+            definePackageIfNecessary(name);
+        } catch (IllegalArgumentException ex) {
+            // Tolerate race condition due to being parallel capable
+            if (getPackage(name) == null) {
+                // This should never happen as the IllegalArgumentException indicates
+                // that the package has already been defined and, therefore,
+                // getPackage(name) should not return null.
+                throw new AssertionError("Package " + name + " has already been defined but it could not be found");
+            }
+        }
+        return delegateLoadClass(name, resolve);
+    }
+
+    /**
+     * Load a class the {@link URLClassLoader} way, parent first. Without locks the steps of
+     * {@link ClassLoader#loadClass(String, boolean)} are taken here, as it would take the
+     * class loading lock.
+     */
+    private Class<?> delegateLoadClass(String name, boolean resolve) throws ClassNotFoundException {
+        ClassLoader parent = getParent();
+        if (!lockFree || parent == null) {
+            return super.loadClass(name, resolve);
+        }
+        Class<?> loadedClass;
+        try {
+            loadedClass = parent.loadClass(name);
+        } catch (ClassNotFoundException ex) {
+            try {
+                loadedClass = findClass(name);
+            } catch (LinkageError error) {
+                loadedClass = getConcurrentlyDefinedClass(name, error);
+            }
+        }
+        if (resolve) {
+            resolveClass(loadedClass);
+        }
+        return loadedClass;
+    }
+
+    /**
+     * Get the class another thread defined while this one was defining it too, which
+     * only happens without locks.
+     *
+     * @param error the error defining the class failed with
+     * @return the class defined by the other thread
+     * @throws LinkageError the error, if no other thread defined the class
+     */
+    private Class<?> getConcurrentlyDefinedClass(String name, LinkageError error) {
+        Class<?> loadedClass = findLoadedClass(name);
+        if (loadedClass == null) {
+            throw error;
+        }
+        return loadedClass;
+    }
+
+    /**
+     * Define a class from the jar the index resolves it to. With a class table the class
+     * maps to exactly one jar, otherwise every jar holding its package is probed in turn.
+     *
+     * @return the defined class or {@code null} if no indexed jar has the class
+     */
+    private Class<?> loadIndexedClass(String name) {
+        BinaryIndex index = this.index;
+        if (index == null) {
+            return null;
+        }
+        if (index.hasClassTable()) {
+            int classRecord = index.findClassOf(name);
+            // the entry name is only needed when neither the store nor the record has the data
+            return (classRecord >= 0) ? defineIndexedClass(name, null, index.getClassJarId(classRecord), classRecord)
+                    : null;
+        }
+        int record = index.findPackageOf(name);
+        if (record < 0) {
+            return null;
+        }
+        String path = toPath(name);
+        for (int i = 0, count = index.getRecordJarCount(record); i < count; i++) {
+            Class<?> definedClass = defineIndexedClass(name, path, index.getRecordJarId(record, i), -1);
+            if (definedClass != null) {
+                return definedClass;
+            }
+        }
+        return null;
+    }
+
+    private static String toPath(String className) {
+        return className.replace('.', '/').concat(".class");
+    }
+
+    private Class<?> defineIndexedClass(String name, String path, int jarId, int classRecord) {
+        if (metrics == null) {
+            return defineIndexedClass(name, path, jarId, classRecord, jarLoaders[jarId]);
+        }
+        long start = System.nanoTime();
+        Class<?> definedClass = defineIndexedClass(name, path, jarId, classRecord, jarLoaders[jarId]);
+        if (definedClass != null) {
+            metrics.indexedClassLoaded(jarId, System.nanoTime() - start);
+        }
+        return definedClass;
+    }
+
+    /**
+     * Define a class from, in turn, the class data store, the entry data the class table
+     * records for it, or the jar's own entry.
+     *
+     * @param path the class entry name, or {@code null} to derive it only if the jar's
+     * entry is read
+     * @param classRecord the class record or {@code -1} without a class table
+     */
+    private Class<?> defineIndexedClass(String name, String path, int jarId, int classRecord,
+            JarFileResourceLoader loader) {
+        if (loader == null) {
+            return null;
+        }
+        ClassSpec classSpec = getStoredClassSpec(name, jarId, loader);
+        if (classSpec == null) {
+            try {
+                classSpec = (classRecord >= 0) ? readIndexedClassSpec(classRecord, loader) : null;
+                if (classSpec == null) {
+                    classSpec = loader.getClassSpec((path != null) ? path : toPath(name));
                 }
-                return super.loadClass(name, resolve);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-        } finally {
-            Handler.setUseFastConnectionExceptions(false);
+            if (classSpec == null) {
+                return null;
+            }
+        }
+        if (metrics != null) metrics.classBytes(classSpec);
+        // before defineClass, which would otherwise define the package without the manifest
+        definePackageIfNecessary(name, loader);
+        ByteBuffer byteBuffer = classSpec.getByteBuffer();
+        Class<?> definedClass;
+        try {
+            definedClass = (byteBuffer != null) ? defineClass(name, byteBuffer, classSpec.getCodeSource())
+                    : defineClass(name, classSpec.getBytes(), 0, classSpec.getBytes().length, classSpec.getCodeSource());
+        } catch (LinkageError ex) {
+            return getConcurrentlyDefinedClass(name, ex);
+        }
+        Queue<InflatedClass> inflatedClasses = this.inflatedClasses;
+        if (inflatedClasses != null && classSpec.getBytes() != null && isUnsigned(classSpec.getCodeSource())) {
+            inflatedClasses.add(new InflatedClass(name, jarId, classSpec.getBytes()));
+        }
+        Queue<String> recordedClasses = this.recordedClasses;
+        if (recordedClasses != null) {
+            recordedClasses.add(name);
+        }
+        return definedClass;
+    }
+
+    /**
+     * Get a class from the class data store, with the code source every unsigned class of
+     * the jar shares.
+     *
+     * @return the class or {@code null} if there is no store or it does not hold the class
+     */
+    private ClassSpec getStoredClassSpec(String name, int jarId, JarFileResourceLoader loader) {
+        ClassDataStore classDataStore = this.classDataStore;
+        ByteBuffer stored = (classDataStore != null) ? classDataStore.getClassData(name, jarId) : null;
+        if (stored == null) {
+            return null;
         }
+        ClassSpec classSpec = new ClassSpec();
+        classSpec.setByteBuffer(stored);
+        classSpec.setCodeSource(loader.getUnsignedCodeSource());
+        return classSpec;
+    }
+
+    /**
+     * Read a class from the fat jar at the offset the class table records for it, without
+     * looking it up in the jar's central directory.
+     *
+     * @return the class or {@code null} if the offset is unknown, which it is for classes
+     * of signed jars as they need their code signers
+     */
+    private ClassSpec readIndexedClassSpec(int classRecord, JarFileResourceLoader loader) throws IOException {
+        BinaryIndex index = this.index;
+        MappedJarFile rootJar = this.rootJar;
+        int dataOffset = index.getClassDataOffset(classRecord);
+        if (dataOffset < 0 || rootJar == null) {
+            return null;
+        }
+        ClassSpec classSpec = new ClassSpec();
+        if (index.getClassMethod(classRecord) == ZipEntry.STORED) {
+            ByteBuffer buffer = rootJar.getData(dataOffset, index.getClassSize(classRecord));
+            if (buffer == null) {
+                return null;
+            }
+            classSpec.setByteBuffer(buffer);
+        } else {
+            byte[] bytes = rootJar.readData(dataOffset, index.getClassCompressedSize(classRecord),
+                    index.getClassSize(classRecord), index.getClassMethod(classRecord));
+            if (bytes == null) {
+                return null;
+            }
+            classSpec.setBytes(bytes);
+        }
+        classSpec.setCodeSource(loader.getUnsignedCodeSource());
+        return classSpec;
+    }
+
+    private static boolean isUnsigned(CodeSource codeSource) {
+        CodeSigner[] codeSigners = codeSource.getCodeSigners();
+        return codeSigners == null || codeSigners.length == 0;
     }
 
     private Class<?> loadClassInLaunchedClassLoader(String name) throws ClassNotFoundException {
@@ -311,17 +1067,13 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
         }
         try {
             try {
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead = -1;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+                byte[] bytes = BufferPool.readFully(inputStream);
                 inputStream.close();
-                byte[] bytes = outputStream.toByteArray();
-                Class<?> definedClass = defineClass(name, bytes, 0, bytes.length);
-                definePackageIfNecessary(name);
-                return definedClass;
+                try {
+                    return defineClass(name, bytes, 0, bytes.length);
+                } catch (LinkageError ex) {
+                    return getConcurrentlyDefinedClass(name, ex);
+                }
             } finally {
                 inputStream.close();
             }
@@ -331,19 +1083,67 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
     }
 
     /**
-     * Define a package before a {@code findClass} call is made. This is necessary to
-     * ensure that the appropriate manifest for nested JARs is associated with the
-     * package.
+     * Define a package before a {@code findClass} call is made, using the jar the class
+     * table resolves the class to, or else the first indexed jar holding the package.
+     * Packages the index does not know are defined from the first jar the index does not
+     * cover, every jar when there is no index, holding both the class and the package
+     * directory, as {@link org.springframework.boot.loader.LaunchedURLClassLoader} does:
+     * {@link URLClassLoader} cannot read the manifest of a nested jar itself. Only those
+     * jars are opened for it.
      *
      * @param className the class name being found
      */
     private void definePackageIfNecessary(String className) {
+        BinaryIndex index = this.index;
+        int classRecord = (index != null) ? index.findClassOf(className) : -1;
+        JarFileResourceLoader owner = (classRecord >= 0) ? jarLoaders[index.getClassJarId(classRecord)] : null;
+        if (owner != null) {
+            definePackageIfNecessary(className, owner);
+            return;
+        }
+        int record = (index != null) ? index.findPackageOf(className) : -1;
+        for (int i = 0, count = (record >= 0) ? index.getRecordJarCount(record) : 0; i < count; i++) {
+            JarFileResourceLoader loader = jarLoaders[index.getRecordJarId(record, i)];
+            if (loader != null) {
+                definePackageIfNecessary(className, loader);
+                return;
+            }
+        }
+        int lastDot = className.lastIndexOf('.');
+        if (lastDot < 0 || getPackage(className.substring(0, lastDot)) != null) {
+            return;
+        }
+        String packageEntryName = className.substring(0, lastDot).replace('.', '/') + "/";
+        String classEntryName = className.replace('.', '/') + ".class";
+        for (JarFileResourceLoader loader : unindexedLoaders) {
+            if (loader.hasEntry(classEntryName) && loader.hasEntry(packageEntryName)) {
+                definePackageIfNecessary(className, loader);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Define a package before its first class is defined. This is necessary to ensure
+     * that the manifest of the nested JAR the index resolved the class to is associated
+     * with the package.
+     *
+     * @param className the class name being defined
+     * @param loader the loader of the jar holding the class
+     */
+    private void definePackageIfNecessary(String className, JarFileResourceLoader loader) {
         int lastDot = className.lastIndexOf('.');
         if (lastDot >= 0) {
             String packageName = className.substring(0, lastDot);
             if (getPackage(packageName) == null) {
+                Manifest manifest = loader.getManifest();
+                if (manifest == null) {
+                    return;
+                }
+                long start = (metrics != null) ? System.nanoTime() : 0L;
                 try {
-                    definePackage(className, packageName);
+                    definePackage(packageName, manifest, loader.getRootUrl());
+                    if (metrics != null) metrics.packageDefined(System.nanoTime() - start);
                 } catch (IllegalArgumentException ex) {
                     // Tolerate race condition due to being parallel capable
                     if (getPackage(packageName) == null) {
@@ -358,33 +1158,6 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
         }
     }
 
-    private void definePackage(String className, String packageName) {
-        try {
-            AccessController.doPrivileged((PrivilegedExceptionAction<Object>) () -> {
-                String packageEntryName = packageName.replace('.', '/') + "/";
-                String classEntryName = className.replace('.', '/') + ".class";
-                for (URL url : getURLs()) {
-                    try {
-                        URLConnection connection = url.openConnection();
-                        if (connection instanceof JarURLConnection) {
-                            JarFile jarFile = ((JarURLConnection) connection).getJarFile();
-                            if (jarFile.getEntry(classEntryName) != null && jarFile.getEntry(packageEntryName) != null
-                                    && jarFile.getManifest() != null) {
-                                definePackage(packageName, jarFile.getManifest(), url);
-                                return null;
-                            }
-                        }
-                    } catch (IOException ex) {
-                        // Ignore
-                    }
-                }
-                return null;
-            }, AccessController.getContext());
-        } catch (java.security.PrivilegedActionException ex) {
-            // Ignore
-        }
-    }
-
     @Override
     protected Package definePackage(String name, Manifest man, URL url) throws IllegalArgumentException {
         if (!this.exploded) {
@@ -462,6 +1235,24 @@ public class JarIndexLaunchedURLClassLoader extends URLClassLoader {
         }
     }
 
+    /**
+     * A class defined from inflated bytes, to be written to the class data store.
+     */
+    private static final class InflatedClass {
+
+        private final String name;
+
+        private final int jarId;
+
+        private final byte[] bytes;
+
+        InflatedClass(String name, int jarId, byte[] bytes) {
+            this.name = name;
+            this.jarId = jarId;
+            this.bytes = bytes;
+        }
+    }
+
     private static class UseFastConnectionExceptionsEnumeration implements Enumeration<URL> {
 
         private final Enumeration<URL> delegate;
@@ -16,18 +16,80 @@
  */
 package com.seewo.psd.bootx.loader;
 
+import java.io.IOException;
 import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class JarLauncher extends org.springframework.boot.loader.JarLauncher {
 
+    private static final int PRELOAD_BATCH_SIZE = 64;
+
+    private JarIndexLaunchedURLClassLoader classLoader;
+
     @Override
     protected ClassLoader createClassLoader(URL[] urls) throws Exception {
         System.out.println(">>>>>>>in createClassLoader");
-        return new CachedLaunchedURLClassLoader(urls, getClass().getClassLoader());
+        CachedLaunchedURLClassLoader classLoader = new CachedLaunchedURLClassLoader(isExploded(), getArchive(), urls,
+                getClass().getClassLoader());
+        preload(classLoader);
+        this.classLoader = classLoader;
+        return classLoader;
+    }
+
+    /**
+     * Define the classes of the packaged {@link WarmupProfile} on a bounded pool of daemon
+     * threads while the main thread goes on into the application. Classes are only
+     * defined, not initialized, and any that fail are left for the application to load.
+     */
+    private void preload(JarIndexLaunchedURLClassLoader classLoader) {
+        List<String> classNames = classLoader.getWarmupClasses();
+        int parallelism = Integer.getInteger(WarmupProfile.PARALLELISM_PROPERTY,
+                Runtime.getRuntime().availableProcessors() - 1);
+        if (classNames.isEmpty() || parallelism < 1
+                || !Boolean.parseBoolean(System.getProperty(WarmupProfile.PRELOAD_PROPERTY, "true"))) {
+            return;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        for (int start = 0; start < classNames.size(); start += PRELOAD_BATCH_SIZE) {
+            List<String> batch = classNames.subList(start, Math.min(start + PRELOAD_BATCH_SIZE, classNames.size()));
+            pool.execute(() -> {
+                for (String className : batch) {
+                    try {
+                        Class.forName(className, false, classLoader);
+                    } catch (ClassNotFoundException | LinkageError ex) {
+                        // the application gets the same error when it loads the class itself
+                    }
+                }
+            });
+        }
+        // queued batches still run, the workers exit once they are done
+        pool.shutdown();
     }
 
     public static void main(String[] args) throws Exception {
         System.out.println(">>>>>>>>>>>>>>>>.in my MyJarLauncher <<<<<<");
-        new JarLauncher().launch(args);
+        JarLauncher launcher = new JarLauncher();
+        launcher.launch(args);
+        launcher.writeMetricsReport();
+        if (launcher.classLoader != null) {
+            launcher.classLoader.storeInflatedClasses();
+        }
+    }
+
+    /**
+     * Write the loader metrics once the application's {@code main} has returned, which for
+     * a Spring Boot application is the end of startup.
+     */
+    private void writeMetricsReport() {
+        String report = System.getProperty(LoaderMetrics.REPORT_PROPERTY);
+        LoaderMetrics metrics = (classLoader != null) ? classLoader.getMetrics() : null;
+        if (report != null && metrics != null) {
+            try {
+                metrics.writeReport(report);
+            } catch (IOException ex) {
+                System.err.println("Failed to write bootx metrics report " + report + ": " + ex);
+            }
+        }
     }
 }
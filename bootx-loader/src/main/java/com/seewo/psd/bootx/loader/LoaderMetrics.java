@@ -0,0 +1,278 @@
+package com.seewo.psd.bootx.loader;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class and resource loading counters of a {@link JarIndexLaunchedURLClassLoader}.
+ * <p>
+ * Only created when {@link #ENABLED_PROPERTY} is {@code true}; loaders keep a {@code null}
+ * reference otherwise, so a disabled build neither allocates nor reads the clock on the
+ * loading path. When {@link #REPORT_PROPERTY} is set, {@link JarLauncher} writes
+ * {@link #getReport()} to that file once the application's {@code main} returns.
+ */
+public class LoaderMetrics implements LoaderMetricsMBean {
+
+    public static final String ENABLED_PROPERTY = "bootx.metrics";
+
+    public static final String REPORT_PROPERTY = "bootx.metrics.report";
+
+    private static final int BUCKETS = 40;
+
+    private final LongAdder indexHits = new LongAdder();
+
+    private final LongAdder indexMisses = new LongAdder();
+
+    private final LongAdder classFallbacks = new LongAdder();
+
+    private final LongAdder resourceIndexHits = new LongAdder();
+
+    private final LongAdder resourceFallbacks = new LongAdder();
+
+    private final LongAdder classCacheHits = new LongAdder();
+
+    private final LongAdder resourceCacheHits = new LongAdder();
+
+    private final LongAdder bytesInflated = new LongAdder();
+
+    private final LongAdder bytesMapped = new LongAdder();
+
+    private final LongAdder definePackageCount = new LongAdder();
+
+    private final LongAdder definePackageNanos = new LongAdder();
+
+    private final AtomicLongArray indexedLoadHistogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLongArray fallbackLoadHistogram = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLongArray definePackageHistogram = new AtomicLongArray(BUCKETS);
+
+    private volatile String[] jarNames = new String[0];
+
+    private volatile AtomicLongArray jarClasses = new AtomicLongArray(0);
+
+    private volatile AtomicLongArray jarNanos = new AtomicLongArray(0);
+
+    /**
+     * Create metrics if they are enabled and register them with the platform MBean server.
+     *
+     * @param classLoader the loader to report on
+     * @return the metrics or {@code null} if they are disabled
+     */
+    static LoaderMetrics createIfEnabled(ClassLoader classLoader) {
+        if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+            return null;
+        }
+        LoaderMetrics metrics = new LoaderMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(
+                    "com.seewo.psd.bootx:type=LoaderMetrics,loader=" + Integer.toHexString(System.identityHashCode(classLoader))));
+        } catch (JMException ex) {
+            // still usable through the report file
+        }
+        return metrics;
+    }
+
+    void setJars(String[] jarNames) {
+        this.jarClasses = new AtomicLongArray(jarNames.length);
+        this.jarNanos = new AtomicLongArray(jarNames.length);
+        this.jarNames = jarNames;
+    }
+
+    void indexedClassLoaded(int jarId, long nanos) {
+        indexHits.increment();
+        record(indexedLoadHistogram, nanos);
+        AtomicLongArray jarClasses = this.jarClasses;
+        AtomicLongArray jarNanos = this.jarNanos;
+        if (jarId < jarClasses.length()) {
+            jarClasses.incrementAndGet(jarId);
+            jarNanos.addAndGet(jarId, nanos);
+        }
+    }
+
+    void indexMiss() {
+        indexMisses.increment();
+    }
+
+    void classFallback(long nanos) {
+        classFallbacks.increment();
+        record(fallbackLoadHistogram, nanos);
+    }
+
+    void resourceIndexHit() {
+        resourceIndexHits.increment();
+    }
+
+    void resourceFallback() {
+        resourceFallbacks.increment();
+    }
+
+    void classCacheHit() {
+        classCacheHits.increment();
+    }
+
+    void resourceCacheHit() {
+        resourceCacheHits.increment();
+    }
+
+    void classBytes(ClassSpec classSpec) {
+        if (classSpec.getByteBuffer() != null) {
+            bytesMapped.add(classSpec.getByteBuffer().remaining());
+        } else {
+            bytesInflated.add(classSpec.getBytes().length);
+        }
+    }
+
+    void packageDefined(long nanos) {
+        definePackageCount.increment();
+        definePackageNanos.add(nanos);
+        record(definePackageHistogram, nanos);
+    }
+
+    private static void record(AtomicLongArray histogram, long nanos) {
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(1, nanos));
+        histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    private static long[] toArray(AtomicLongArray histogram) {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    @Override
+    public long getIndexHits() {
+        return indexHits.sum();
+    }
+
+    @Override
+    public long getIndexMisses() {
+        return indexMisses.sum();
+    }
+
+    @Override
+    public long getClassFallbacks() {
+        return classFallbacks.sum();
+    }
+
+    @Override
+    public long getResourceIndexHits() {
+        return resourceIndexHits.sum();
+    }
+
+    @Override
+    public long getResourceFallbacks() {
+        return resourceFallbacks.sum();
+    }
+
+    @Override
+    public long getClassCacheHits() {
+        return classCacheHits.sum();
+    }
+
+    @Override
+    public long getResourceCacheHits() {
+        return resourceCacheHits.sum();
+    }
+
+    @Override
+    public long getBytesInflated() {
+        return bytesInflated.sum();
+    }
+
+    @Override
+    public long getBytesMapped() {
+        return bytesMapped.sum();
+    }
+
+    @Override
+    public long getDefinePackageCount() {
+        return definePackageCount.sum();
+    }
+
+    @Override
+    public long getDefinePackageNanos() {
+        return definePackageNanos.sum();
+    }
+
+    @Override
+    public long[] getIndexedLoadHistogram() {
+        return toArray(indexedLoadHistogram);
+    }
+
+    @Override
+    public long[] getFallbackLoadHistogram() {
+        return toArray(fallbackLoadHistogram);
+    }
+
+    @Override
+    public long[] getDefinePackageHistogram() {
+        return toArray(definePackageHistogram);
+    }
+
+    @Override
+    public String[] getJarTimes() {
+        String[] jarNames = this.jarNames;
+        AtomicLongArray jarClasses = this.jarClasses;
+        AtomicLongArray jarNanos = this.jarNanos;
+        String[] jarTimes = new String[jarNames.length];
+        for (int i = 0; i < jarTimes.length; i++) {
+            jarTimes[i] = jarNames[i] + " " + jarClasses.get(i) + " " + jarNanos.get(i);
+        }
+        return jarTimes;
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        report.append("indexHits=").append(getIndexHits()).append('\n');
+        report.append("indexMisses=").append(getIndexMisses()).append('\n');
+        report.append("classFallbacks=").append(getClassFallbacks()).append('\n');
+        report.append("resourceIndexHits=").append(getResourceIndexHits()).append('\n');
+        report.append("resourceFallbacks=").append(getResourceFallbacks()).append('\n');
+        report.append("classCacheHits=").append(getClassCacheHits()).append('\n');
+        report.append("resourceCacheHits=").append(getResourceCacheHits()).append('\n');
+        report.append("bytesInflated=").append(getBytesInflated()).append('\n');
+        report.append("bytesMapped=").append(getBytesMapped()).append('\n');
+        report.append("definePackageCount=").append(getDefinePackageCount()).append('\n');
+        report.append("definePackageNanos=").append(getDefinePackageNanos()).append('\n');
+        appendHistogram(report, "indexedLoadHistogram", getIndexedLoadHistogram());
+        appendHistogram(report, "fallbackLoadHistogram", getFallbackLoadHistogram());
+        appendHistogram(report, "definePackageHistogram", getDefinePackageHistogram());
+        report.append("# jar classes nanos\n");
+        for (String jarTime : getJarTimes()) {
+            report.append(jarTime).append('\n');
+        }
+        return report.toString();
+    }
+
+    private void appendHistogram(StringBuilder report, String name, long[] counts) {
+        report.append(name).append('=');
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                report.append(' ').append(1L << i).append("ns:").append(counts[i]);
+            }
+        }
+        report.append('\n');
+    }
+
+    /**
+     * Write the {@link #getReport() report} to a file. Not exposed over JMX, where it
+     * would let any client write files as the JVM user.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeReport(String file) throws IOException {
+        Files.write(new File(file).toPath(), getReport().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,45 @@
+package com.seewo.psd.bootx.loader;
+
+/**
+ * JMX view of {@link LoaderMetrics}. Histograms are counts per power of two nanoseconds,
+ * bucket {@code i} holding latencies in {@code [2^i, 2^(i+1))}.
+ */
+public interface LoaderMetricsMBean {
+
+    long getIndexHits();
+
+    long getIndexMisses();
+
+    long getClassFallbacks();
+
+    long getResourceIndexHits();
+
+    long getResourceFallbacks();
+
+    long getClassCacheHits();
+
+    long getResourceCacheHits();
+
+    long getBytesInflated();
+
+    long getBytesMapped();
+
+    long getDefinePackageCount();
+
+    long getDefinePackageNanos();
+
+    long[] getIndexedLoadHistogram();
+
+    long[] getFallbackLoadHistogram();
+
+    long[] getDefinePackageHistogram();
+
+    /**
+     * Get the classes defined from and the time spent in each indexed jar.
+     *
+     * @return one {@code name classes nanos} line per jar
+     */
+    String[] getJarTimes();
+
+    String getReport();
+}
@@ -0,0 +1,457 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * A read-only memory mapping of the outer fat jar with just enough zip parsing to find
+ * where an entry's data starts. Entries written {@link ZipEntry#STORED STORED} can then
+ * be used in place without going through {@link java.util.jar.JarFile}.
+ * <p>
+ * A stored nested jar is opened as a view of the same mapping. All reads use absolute
+ * positions on the shared buffer, so any number of threads can read entries at once
+ * without locking.
+ */
+final class MappedJarFile {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int END_SIZE = 22;
+
+    private static final byte[] META_INF = "META-INF/".getBytes(StandardCharsets.US_ASCII);
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final int zipStart;
+
+    private final int centralDirectoryOffset;
+
+    private final int entryCount;
+
+    /**
+     * Central header positions by name hash, open addressing with {@code 0} for an empty
+     * slot and positions stored plus one. Built on first lookup.
+     */
+    private volatile int[] entryTable;
+
+    private boolean signed;
+
+    private MappedJarFile(File file, ByteBuffer buffer, int zipStart, int centralDirectoryOffset, int entryCount) {
+        this.file = file;
+        this.buffer = buffer;
+        this.zipStart = zipStart;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.entryCount = entryCount;
+    }
+
+    /**
+     * Map a jar file.
+     *
+     * @param file the jar file
+     * @return the mapped jar or {@code null} if the file is too large to map in one buffer
+     * or is not a zip file
+     * @throws IOException if the file cannot be mapped
+     */
+    static MappedJarFile open(File file) throws IOException {
+        MappedByteBuffer mapped;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length > Integer.MAX_VALUE || length < END_SIZE) {
+                return null;
+            }
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        return of(file, mapped);
+    }
+
+    private static MappedJarFile of(File file, ByteBuffer data) {
+        ByteBuffer buffer = data.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < END_SIZE) {
+            return null;
+        }
+        int end = findEnd(buffer);
+        if (end < 0) {
+            return null;
+        }
+        long entryCount = buffer.getShort(end + 10) & 0xFFFF;
+        long centralDirectorySize = buffer.getInt(end + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = buffer.getInt(end + 16) & 0xFFFFFFFFL;
+        int directoryEnd = end;
+        int locator = end - 20;
+        if (locator >= 0 && buffer.getInt(locator) == ZIP64_LOCATOR_SIGNATURE) {
+            int zip64End = end - 20 - 56;
+            if (zip64End >= 0 && buffer.getInt(zip64End) == ZIP64_END_SIGNATURE) {
+                entryCount = buffer.getLong(zip64End + 32);
+                centralDirectorySize = buffer.getLong(zip64End + 40);
+                centralDirectoryOffset = buffer.getLong(zip64End + 48);
+                directoryEnd = zip64End;
+            }
+        }
+        // offsets are relative to the start of the zip data, which follows any launch script
+        long zipStart = directoryEnd - centralDirectorySize - centralDirectoryOffset;
+        if (zipStart < 0 || entryCount > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new MappedJarFile(file, buffer, (int) zipStart, (int) (zipStart + centralDirectoryOffset),
+                (int) entryCount);
+    }
+
+    private static int findEnd(ByteBuffer buffer) {
+        int minimum = Math.max(0, buffer.capacity() - END_SIZE - 0xFFFF);
+        for (int pos = buffer.capacity() - END_SIZE; pos >= minimum; pos--) {
+            if (buffer.getInt(pos) == END_SIGNATURE) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Checksum the central directory. It holds the name, size and CRC of every entry, so
+     * this identifies the jar's content without reading the entries themselves.
+     *
+     * @return the CRC-32 of the central directory and end records
+     */
+    long getChecksum() {
+        ByteBuffer directory = buffer.duplicate();
+        directory.position(centralDirectoryOffset);
+        CRC32 crc = new CRC32();
+        crc.update(directory);
+        return crc.getValue();
+    }
+
+    /**
+     * Checksum the entries an index of this jar describes, see {@link IndexedJarChecksum}.
+     *
+     * @return the checksum to compare with {@link BinaryIndex#getJarChecksum()}
+     */
+    long getIndexedChecksum() {
+        IndexedJarChecksum checksum = new IndexedJarChecksum();
+        int pos = centralDirectoryOffset;
+        for (int i = 0; i < entryCount && buffer.getInt(pos) == CENTRAL_HEADER_SIGNATURE; i++) {
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            byte[] name = new byte[nameLength];
+            for (int j = 0; j < nameLength; j++) {
+                name[j] = buffer.get(pos + 46 + j);
+            }
+            checksum.addEntry(name, buffer.getShort(pos + 10) & 0xFFFF, buffer.getInt(pos + 16) & 0xFFFFFFFFL,
+                    buffer.getInt(pos + 20) & 0xFFFFFFFFL, buffer.getInt(pos + 24) & 0xFFFFFFFFL,
+                    buffer.getInt(pos + 42) & 0xFFFFFFFFL);
+            pos += 46 + nameLength + (buffer.getShort(pos + 30) & 0xFFFF) + (buffer.getShort(pos + 32) & 0xFFFF);
+        }
+        return checksum.getValue();
+    }
+
+    /**
+     * Open a stored nested jar as a view of this mapping.
+     *
+     * @param name the entry name of the nested jar
+     * @return the nested jar or {@code null} if there is no such entry or it is compressed
+     */
+    MappedJarFile getNestedJar(String name) {
+        ByteBuffer data = getStoredEntry(name);
+        return (data != null) ? of(file, data) : null;
+    }
+
+    /**
+     * Return if the jar holds signature files, in which case entries must be read through
+     * {@link java.util.jar.JarFile} to get their code signers.
+     *
+     * @return if the jar is signed
+     */
+    boolean isSigned() {
+        getEntryTable();
+        return signed;
+    }
+
+    /**
+     * Find an entry.
+     *
+     * @param name the entry name
+     * @return the entry for {@link #readEntry} or {@code -1} if there is no such entry
+     */
+    int findEntry(String name) {
+        int[] table = getEntryTable();
+        int mask = table.length - 1;
+        int slot = BinaryIndex.mix(name.hashCode()) & mask;
+        while (table[slot] != 0) {
+            int pos = table[slot] - 1;
+            if (nameEquals(pos + 46, buffer.getShort(pos + 28) & 0xFFFF, name)) {
+                return pos;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the data of an entry in place if it is stored.
+     *
+     * @param entry the entry as returned by {@link #findEntry}
+     * @return a read-only view of the entry data or {@code null} if the entry is compressed
+     * or cannot be read from the mapping
+     */
+    ByteBuffer getStoredEntry(int entry) {
+        int size = buffer.getInt(entry + 24);
+        if ((buffer.getShort(entry + 10) & 0xFFFF) != ZipEntry.STORED || size < 0) {
+            return null;
+        }
+        return slice(zipStart + (buffer.getInt(entry + 42) & 0xFFFFFFFFL), size);
+    }
+
+    /**
+     * Read and, if needed, inflate the data of an entry.
+     *
+     * @param entry the entry as returned by {@link #findEntry}
+     * @return the entry data or {@code null} if the entry cannot be read from the mapping,
+     * e.g. because it uses zip64 sizes or an unsupported method
+     * @throws IOException if the entry data is corrupt
+     */
+    byte[] readEntry(int entry) throws IOException {
+        int method = buffer.getShort(entry + 10) & 0xFFFF;
+        int compressedSize = buffer.getInt(entry + 20);
+        int size = buffer.getInt(entry + 24);
+        long localHeader = zipStart + (buffer.getInt(entry + 42) & 0xFFFFFFFFL);
+        // negative sizes are zip64 or more than a class can hold
+        if (compressedSize < 0 || size < 0 || localHeader + 30 > buffer.capacity()
+                || buffer.getInt((int) localHeader) != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+        int header = (int) localHeader;
+        long data = localHeader + 30 + (buffer.getShort(header + 26) & 0xFFFF) + (buffer.getShort(header + 28) & 0xFFFF);
+        if (data + compressedSize > buffer.capacity()) {
+            return null;
+        }
+        return readData(data, compressedSize, size, method);
+    }
+
+    /**
+     * Get entry data known to be stored in place, e.g. from the class table of the index.
+     *
+     * @param data the offset of the entry data
+     * @param size the size of the entry data
+     * @return a read-only view of the data or {@code null} if it is out of bounds
+     */
+    ByteBuffer getData(long data, int size) {
+        if (data < 0 || size < 0 || data + size > buffer.capacity()) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) data);
+        view.limit((int) (data + size));
+        return view.slice().asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Read and, if needed, inflate entry data with one positional read, e.g. from the class
+     * table of the index. The compressed data is copied into a pooled buffer and inflated
+     * with a pooled {@link Inflater}, see {@link BufferPool}.
+     *
+     * @param data the offset of the entry data
+     * @param compressedSize the size of the entry data
+     * @param size the size of the entry once inflated
+     * @param method the compression method
+     * @return the entry data or {@code null} if it is out of bounds or uses an unsupported
+     * method
+     * @throws IOException if the entry data is corrupt
+     */
+    byte[] readData(long data, int compressedSize, int size, int method) throws IOException {
+        if (data < 0 || compressedSize < 0 || size < 0 || data + compressedSize > buffer.capacity()) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) data);
+        if (method == ZipEntry.STORED) {
+            byte[] bytes = new byte[size];
+            view.get(bytes);
+            return bytes;
+        }
+        if (method != ZipEntry.DEFLATED) {
+            return null;
+        }
+        byte[] compressed = BufferPool.acquire(compressedSize);
+        Inflater inflater = BufferPool.acquireInflater();
+        try {
+            view.get(compressed, 0, compressedSize);
+            inflater.setInput(compressed, 0, compressedSize);
+            byte[] bytes = new byte[size];
+            int inflated = 0;
+            while (inflated < size) {
+                int count = inflater.inflate(bytes, inflated, size - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != size) {
+                throw new IOException("Truncated entry data in " + file);
+            }
+            return bytes;
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt entry data in " + file, ex);
+        } finally {
+            BufferPool.release(inflater);
+            BufferPool.release(compressed);
+        }
+    }
+
+    private int[] getEntryTable() {
+        int[] table = this.entryTable;
+        if (table == null) {
+            // racing threads build the same table, the last write wins
+            table = buildEntryTable();
+            this.entryTable = table;
+        }
+        return table;
+    }
+
+    private int[] buildEntryTable() {
+        int[] table = new int[Integer.highestOneBit(Math.max(1, entryCount) * 2 - 1) << 1];
+        int mask = table.length - 1;
+        boolean signed = false;
+        int pos = centralDirectoryOffset;
+        for (int i = 0; i < entryCount && buffer.getInt(pos) == CENTRAL_HEADER_SIGNATURE; i++) {
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            String name = null;
+            int hash = 0;
+            for (int j = 0; j < nameLength; j++) {
+                int b = buffer.get(pos + 46 + j);
+                if (b < 0) {
+                    name = decodeName(pos + 46, nameLength);
+                    hash = name.hashCode();
+                    break;
+                }
+                hash = 31 * hash + b;
+            }
+            if (!signed && nameLength > 12 && nameStartsWith(pos + 46, META_INF)) {
+                signed = isSignatureFile((name != null) ? name : decodeName(pos + 46, nameLength));
+            }
+            int slot = BinaryIndex.mix(hash) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = pos + 1;
+            pos += 46 + nameLength + (buffer.getShort(pos + 30) & 0xFFFF) + (buffer.getShort(pos + 32) & 0xFFFF);
+        }
+        this.signed = signed;
+        return table;
+    }
+
+    private boolean nameStartsWith(int pos, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(pos + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isSignatureFile(String name) {
+        return name.indexOf('/', META_INF.length) < 0
+                && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"));
+    }
+
+    private String decodeName(int pos, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(pos + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean nameEquals(int pos, int length, String name) {
+        if (length != name.length()) {
+            // only equal when the name has multi-byte characters
+            return length > name.length() && decodeName(pos, length).equals(name);
+        }
+        for (int i = 0; i < length; i++) {
+            int b = buffer.get(pos + i);
+            if (b < 0) {
+                return decodeName(pos, length).equals(name);
+            }
+            if (b != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the data of a stored entry without copying it.
+     *
+     * @param name the entry name
+     * @return a read-only big-endian view of the entry data, or {@code null} if there is no
+     * such entry or it is compressed
+     */
+    ByteBuffer getStoredEntry(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int pos = centralDirectoryOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (buffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                return null;
+            }
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+            if (nameLength == nameBytes.length && nameEquals(pos + 46, nameBytes)) {
+                int method = buffer.getShort(pos + 10) & 0xFFFF;
+                long size = buffer.getInt(pos + 24) & 0xFFFFFFFFL;
+                long localHeader = buffer.getInt(pos + 42) & 0xFFFFFFFFL;
+                if (method != ZipEntry.STORED || size == 0xFFFFFFFFL || localHeader == 0xFFFFFFFFL) {
+                    return null;
+                }
+                return slice(zipStart + localHeader, size);
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return null;
+    }
+
+    private ByteBuffer slice(long localHeader, long size) {
+        if (localHeader + 30 > buffer.capacity() || buffer.getInt((int) localHeader) != LOCAL_HEADER_SIGNATURE) {
+            return null;
+        }
+        int header = (int) localHeader;
+        long data = localHeader + 30 + (buffer.getShort(header + 26) & 0xFFFF) + (buffer.getShort(header + 28) & 0xFFFF);
+        if (data + size > buffer.capacity()) {
+            return null;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) data);
+        view.limit((int) (data + size));
+        return view.slice().asReadOnlyBuffer().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private boolean nameEquals(int pos, byte[] nameBytes) {
+        for (int i = 0; i < nameBytes.length; i++) {
+            if (buffer.get(pos + i) != nameBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
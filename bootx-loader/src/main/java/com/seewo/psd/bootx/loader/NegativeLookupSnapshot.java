@@ -0,0 +1,170 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The class and resource names a {@link CachedLaunchedURLClassLoader} found to be absent,
+ * kept across restarts.
+ * <p>
+ * With {@link #SNAPSHOT_PROPERTY} set, the loader writes its cached misses to that file
+ * when the JVM exits and seeds its caches from it on the next launch, so that the
+ * condition checks of every startup after the first are answered without searching the
+ * jars. A snapshot only applies to the fat jar and JVM setup it was written for: its
+ * first line holds the checksum of the jar's central directory, the runtime version and
+ * a checksum of what else decides which classes the parent loaders can find, the class
+ * path, boot class path additions and JVM arguments such as {@code -javaagent}. A
+ * snapshot that does not match is ignored and rewritten.
+ * <p>
+ * Every further line is a kind, a space and a name: {@code C} for a class,
+ * {@code R} for a resource and {@code S} for a name with no resources at all.
+ */
+public final class NegativeLookupSnapshot {
+
+    /**
+     * File to keep the snapshot in.
+     */
+    public static final String SNAPSHOT_PROPERTY = "bootx.cache.snapshot";
+
+    private static final String HEADER = "bootx-negative-lookups 1";
+
+    private final List<String> classNames = new ArrayList<>();
+
+    private final List<String> resourceNames = new ArrayList<>();
+
+    private final List<String> resourcesNames = new ArrayList<>();
+
+    private NegativeLookupSnapshot() {
+    }
+
+    List<String> getClassNames() {
+        return classNames;
+    }
+
+    List<String> getResourceNames() {
+        return resourceNames;
+    }
+
+    List<String> getResourcesNames() {
+        return resourcesNames;
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param file the snapshot file
+     * @param checksum the checksum of the fat jar being launched
+     * @return the snapshot or {@code null} if there is none or it was written for another
+     * jar or runtime
+     * @throws IOException if the file cannot be read
+     */
+    static NegativeLookupSnapshot read(File file, long checksum) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            if (!HEADER.equals(reader.readLine()) || !key(checksum).equals(reader.readLine())) {
+                return null;
+            }
+            NegativeLookupSnapshot snapshot = new NegativeLookupSnapshot();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 3 || line.charAt(1) != ' ') {
+                    continue;
+                }
+                String name = line.substring(2);
+                switch (line.charAt(0)) {
+                    case 'C':
+                        snapshot.classNames.add(name);
+                        break;
+                    case 'R':
+                        snapshot.resourceNames.add(name);
+                        break;
+                    case 'S':
+                        snapshot.resourcesNames.add(name);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Write a snapshot. The file is replaced in one step, so JVMs launching concurrently
+     * never read it half written.
+     */
+    static void write(File file, long checksum, Collection<String> classNames, Collection<String> resourceNames,
+            Collection<String> resourcesNames) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+        File temp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(Files.newOutputStream(temp.toPath()), StandardCharsets.UTF_8))) {
+                writer.write(HEADER);
+                writer.write('\n');
+                writer.write(key(checksum));
+                writer.write('\n');
+                writeNames(writer, 'C', classNames);
+                writeNames(writer, 'R', resourceNames);
+                writeNames(writer, 'S', resourcesNames);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private static void writeNames(Writer writer, char kind, Collection<String> names) throws IOException {
+        for (String name : names) {
+            // a name cannot span lines in the snapshot, and is not worth keeping anyway
+            if (name.indexOf('\n') < 0 && name.indexOf('\r') < 0) {
+                writer.write(kind);
+                writer.write(' ');
+                writer.write(name);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static String key(long checksum) {
+        return Long.toHexString(checksum) + " " + System.getProperty("java.runtime.version", "") + " "
+                + Long.toHexString(environmentChecksum());
+    }
+
+    /**
+     * Checksum the JVM setup outside the fat jar: a class that is missing now can be
+     * found once an agent or class path entry is added.
+     */
+    private static long environmentChecksum() {
+        CRC32 crc = new CRC32();
+        List<String> values = new ArrayList<>();
+        values.add(System.getProperty("java.class.path", ""));
+        // Java 8 and Java 9 or later respectively
+        values.add(System.getProperty("sun.boot.class.path", ""));
+        values.add(System.getProperty("jdk.boot.class.path.append", ""));
+        values.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        for (String value : values) {
+            crc.update(value.getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+        }
+        return crc.getValue();
+    }
+}
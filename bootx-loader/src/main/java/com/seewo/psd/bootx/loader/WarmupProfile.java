@@ -0,0 +1,81 @@
+package com.seewo.psd.bootx.loader;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The classes an application defines during startup, in the order it defines them.
+ * <p>
+ * A training run with {@link #RECORD_PROPERTY} set writes the profile when the JVM exits.
+ * bootx-loader-tools embeds it as {@code META-INF/bootx/WARMUP.LIST}, one binary class
+ * name per line, and {@link JarLauncher} preloads the listed classes in parallel while
+ * the application starts.
+ */
+public final class WarmupProfile {
+
+    public static final String WARMUP_NAME = "WARMUP.LIST";
+
+    /**
+     * File to record the profile to.
+     */
+    public static final String RECORD_PROPERTY = "bootx.warmup.record";
+
+    /**
+     * Set to {@code false} to skip preloading.
+     */
+    public static final String PRELOAD_PROPERTY = "bootx.warmup.preload";
+
+    /**
+     * Number of preloading threads, defaults to one less than the available processors.
+     */
+    public static final String PARALLELISM_PROPERTY = "bootx.warmup.parallelism";
+
+    private WarmupProfile() {
+    }
+
+    /**
+     * Parse a profile.
+     *
+     * @param buffer the profile bytes or {@code null}
+     * @return the class names, empty if there is no profile
+     */
+    static List<String> read(ByteBuffer buffer) {
+        if (buffer == null) {
+            return Collections.emptyList();
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        List<String> classNames = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= bytes.length; i++) {
+            if (i == bytes.length || bytes[i] == '\n') {
+                int end = (i > start && bytes[i - 1] == '\r') ? i - 1 : i;
+                if (end > start) {
+                    classNames.add(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                }
+                start = i + 1;
+            }
+        }
+        return classNames;
+    }
+
+    static void write(File file, Collection<String> classNames) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8))) {
+            for (String className : classNames) {
+                writer.write(className);
+                writer.write('\n');
+            }
+        }
+    }
+}